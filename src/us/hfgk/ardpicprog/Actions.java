@@ -1,8 +1,10 @@
 package us.hfgk.ardpicprog;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -13,13 +15,52 @@ public class Actions {
 		hexFile.writeTo(port, forceCalibration);
 	}
 
+	static void doStreamingBurn(boolean forceCalibration, ProgrammerPort port, HexFileMetadata metadata, String input)
+			throws IOException {
+		// Only uncompressed regular files can be parsed alongside the burn.
+		if (!Common.isMappable(input)) {
+			doBurn(forceCalibration, port, loadHexFile(metadata, input));
+			return;
+		}
+
+		HexFileBurner.burn(metadata, Common.mapForRead(input), port.getShortSink(forceCalibration), forceCalibration);
+	}
+
 	static void doCCOutput(String ccOutput, boolean skipOnes, HexFile hexFile) throws IOException {
 		OutputStream file = Common.openForWrite(ccOutput);
 		hexFile.saveCC(file, skipOnes);
 		file.close();
 	}
 
-	static void doErase(boolean forceCalibration, ProgrammerPort port, HexFile hexFile) throws EraseException {
+	static void doBinaryCCOutput(String ccOutput, HexFile hexFile) throws IOException {
+		BinaryImage.save(hexFile, ccOutput);
+	}
+
+	static void doDiff(HexFile hexFile, HexFile otherFile, String otherName) throws IOException {
+		// Equal fingerprints are only a hint; the words are always compared.
+		if (hexFile.fingerprint() == otherFile.fingerprint())
+			log.fine("Input and " + otherName + " are likely identical (fingerprint "
+					+ ImageFingerprint.format(hexFile.fingerprint()) + ")");
+
+		IntRangeSet changed = HexImageDiff.diff(hexFile.getMetadata(), hexFile.getWords(), otherFile.getWords());
+
+		for (IntRange range : changed) {
+			log.info("Differs at " + String.format("%04X-%04X", range.start(), range.end()) + " ("
+					+ range.size() + ((range.size() == 1) ? " word)" : " words)"));
+		}
+
+		if (changed.isEmpty())
+			log.info("Input is identical to " + otherName);
+		else
+			log.info(changed.wordCount() + " words in " + changed.size() + " ranges differ from "
+					+ otherName);
+	}
+
+	static void doErase(ProgrammerPort port) throws IOException {
+		doErase(false, port, null);
+	}
+
+	static void doErase(boolean forceCalibration, ProgrammerPort port, HexFile hexFile) throws IOException {
 		if (forceCalibration) {
 			if (hexFile.canForceCalibration()) {
 				log.info("Erasing and removing code protection.");
@@ -46,10 +87,6 @@ public class Actions {
 	}
 
 	static void doOutput(String output, boolean skipOnes, ProgrammerPort port, HexFileMetadata hexMeta) throws IOException {
-		ShortList words = Common.getBlankShortList();		
-		HexFile.readFrom(words, port.getShortSource(), hexMeta.getAreas());		
-		HexFile hexFile = new HexFile(hexMeta, words);
-
 		OutputStream file = null;
 		try {
 			try {
@@ -59,13 +96,31 @@ public class Actions {
 				throw e;
 			}
 
-			hexFile.save(file, skipOnes);
+			// Records are written as the device is read, not held until the end.
+			log.info("Reading device to " + output);
+			long fingerprint = HexFileSerializer.saveFrom(hexMeta, port.getShortSource(), file, skipOnes);
 			file.close();
+			log.info("Device fingerprint " + ImageFingerprint.format(fingerprint));
 		} finally {
 			Common.closeWarnOnError(file, log);
 		}
 	}
 
+	static void doBinaryOutput(String output, ProgrammerPort port, HexFileMetadata hexMeta) throws IOException {
+		ShortList words = Common.getBlankShortList(hexMeta);
+		ImageFingerprint fingerprint = new ImageFingerprint(hexMeta);
+		HexFile.readFrom(fingerprint.track(words), port.getShortSource(), hexMeta.getAreas());
+		HexFile hexFile = new HexFile(hexMeta, words, fingerprint.value());
+		log.info("Device fingerprint " + ImageFingerprint.format(fingerprint.value()));
+
+		try {
+			BinaryImage.save(hexFile, output);
+		} catch (IOException e) {
+			log.severe("Could not write " + output + ": " + e.getMessage());
+			throw e;
+		}
+	}
+
 	static void doBlankCheck(ProgrammerPort port, HexFileMetadata metadata) throws IOException {
 		log.info("Checking whether device is blank");
 		if (HexFile.blankCheckRead(metadata, port.getShortSource())) {
@@ -88,11 +143,41 @@ public class Actions {
 				+ " words, data memory: " + metadata.dataSizeBytes() + " bytes.");
 	}
 	
-	static HexFileMetadata getHexMeta(int format, Map<String, String> details) throws IOException {
-		return new HexFileMetadata(new DeviceDetails(details), format);
+	static HexFileMetadata getHexMeta(int format, int recordBytes, Map<String, String> details) throws IOException {
+		return new HexFileMetadata(new DeviceDetails(details), format, recordBytes);
 	}
 	
+	static HexFile mergeFiles(HexFileMetadata metadata, HexFile hexFile, String input, List<String> others,
+			boolean binary, String cacheDirectory) throws IOException {
+		HexImageMerger merger = new HexImageMerger(metadata);
+		merger.add(input, hexFile.getWords());
+		for (String other : others) {
+			log.info("Merging " + other);
+			HexFile otherFile = binary ? loadBinaryImage(metadata, other) : loadHexFile(metadata, other, cacheDirectory);
+			merger.add(other, otherFile.getWords());
+		}
+		return merger.toHexFile();
+	}
+
+	static HexFile loadBinaryImage(HexFileMetadata metadata, String input) throws IOException {
+		return BinaryImage.load(metadata, Common.mapForRead(input));
+	}
+
+	static HexFile loadHexFile(HexFileMetadata metadata, String input, String cacheDirectory) throws IOException {
+		if (Common.stringEmpty(cacheDirectory) || !Common.isMappable(input))
+			return loadHexFile(metadata, input);
+
+		File directory = new File(cacheDirectory);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create cache directory " + cacheDirectory);
+		return new HexImageCache(directory, HexImageCache.DEFAULT_MAX_BYTES).load(metadata, input);
+	}
+
 	static HexFile loadHexFile(HexFileMetadata metadata, String input) throws IOException {
+		// Uncompressed regular files are mapped and parsed in place.
+		if (Common.isMappable(input))
+			return HexFileParser.load(metadata, Common.mapForRead(input));
+
 		InputStream file = null;		
 		try {
 			file = Common.openForRead(input);
@@ -5,6 +5,8 @@ import gnu.getopt.LongOpt;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,10 +23,16 @@ public class App {
 		String input;
 		String output;
 		String ccOutput;
+		String hexCache;
+		String diff;
+		List<String> merge = new ArrayList<String>();
 		int format = HexFile.FORMAT_AUTO;
+		int recordBytes = HexFileMetadata.DEFAULT_RECORD_BYTES;
 		boolean skipOnes = false;
+		boolean binary = false;
 		boolean erase = false;
 		boolean burn = false;
+		boolean streamBurn = false;
 		boolean forceCalibration = false;
 		boolean listDevices = false;
 		boolean describeDevice = false;
@@ -39,6 +47,10 @@ public class App {
 
 			env = System.getenv("PIC_PORT");
 			port = Common.stringEmpty(env) ? "" : env;
+
+			env = System.getenv("PIC_HEX_CACHE");
+			if (!Common.stringEmpty(env))
+				hexCache = env;
 		}
 
 		public static final char BURN = 'b';
@@ -61,6 +73,12 @@ public class App {
 		public static final char WARRANTY = 'w';
 		public static final int DESCRIBE = 0x100001;
 		public static final int BLANK_CHECK = 0x100002;
+		public static final int STREAM_BURN = 0x100003;
+		public static final int HEX_CACHE = 0x100004;
+		public static final int BINARY = 0x100005;
+		public static final int DIFF = 0x100006;
+		public static final int MERGE = 0x100007;
+		public static final int RECORD_LENGTH = 0x100008;
 	}
 
 	public static final String ARDPICPROG_VERSION = "0.1.2";
@@ -110,9 +128,20 @@ public class App {
 			dieUsage("Cannot use --cc-hexfile without also specifying --input-hexfile");
 		}
 
-		// If we have -i, but no -c or --burn, then report an error.
-		if (!Common.stringEmpty(options.input) && Common.stringEmpty(options.ccOutput) && !options.burn) {
-			dieUsage("Cannot use --input-hexfile without also specifying --cc-hexfile or --burn");
+		// If we have -i, but no -c, --burn, or --diff, then report an error.
+		if (!Common.stringEmpty(options.input) && Common.stringEmpty(options.ccOutput) && !options.burn
+				&& Common.stringEmpty(options.diff)) {
+			dieUsage("Cannot use --input-hexfile without also specifying --cc-hexfile, --burn, or --diff");
+		}
+
+		// Cannot use --merge without -i.
+		if (!options.merge.isEmpty() && Common.stringEmpty(options.input)) {
+			dieUsage("Cannot use --merge without also specifying --input-hexfile");
+		}
+
+		// Cannot use --diff without -i.
+		if (!Common.stringEmpty(options.diff) && Common.stringEmpty(options.input)) {
+			dieUsage("Cannot use --diff without also specifying --input-hexfile");
 		}
 
 		// Cannot use --burn without -i.
@@ -124,6 +153,28 @@ public class App {
 		if (options.forceCalibration && !options.burn) {
 			dieUsage("Cannot use --force-calibration without also specifying --burn");
 		}
+
+		// Will need --burn if doing --stream-burn.
+		if (options.streamBurn && !options.burn) {
+			dieUsage("Cannot use --stream-burn without also specifying --burn");
+		}
+
+		// A streamed input is never held in memory to copy or inspect.
+		if (options.streamBurn && !Common.stringEmpty(options.ccOutput)) {
+			dieUsage("Cannot use --stream-burn with --cc-hexfile");
+		}
+		if (options.streamBurn && options.erase && options.forceCalibration) {
+			dieUsage("Cannot use --stream-burn with both --erase and --force-calibration");
+		}
+		if (options.streamBurn && options.binary) {
+			dieUsage("Cannot use --stream-burn with --binary");
+		}
+		if (options.streamBurn && !Common.stringEmpty(options.diff)) {
+			dieUsage("Cannot use --stream-burn with --diff");
+		}
+		if (options.streamBurn && !options.merge.isEmpty()) {
+			dieUsage("Cannot use --stream-burn with --merge");
+		}
 	}
 
 	private void dieUsage(String message) throws UsageException {
@@ -166,6 +217,10 @@ public class App {
 				// Set the hexfile format: IHX8M, IHX16, or IHX32.
 				options.format = opt;
 				break;
+			case Options.BINARY:
+				// Read and write raw binary images instead of hex files.
+				options.binary = true;
+				break;
 			case Options.BLANK_CHECK:
 				// Check if the device is blank.
 				options.blankCheck = true;
@@ -175,6 +230,10 @@ public class App {
 				// Burn the PIC.
 				options.burn = true;
 				break;
+			case Options.STREAM_BURN:
+				// Burn the input while it is still being parsed.
+				options.streamBurn = true;
+				break;
 			case Options.CC_HEXFILE:
 				// Set the name of the cc output hexfile.
 				options.ccOutput = g.getOptarg();
@@ -187,6 +246,10 @@ public class App {
 				// Describe the device.
 				options.describeDevice = true;
 				break;
+			case Options.DIFF:
+				// Set the name of the file to compare the input against.
+				options.diff = g.getOptarg();
+				break;
 			case Options.DEVICE:
 				// Set the type of PIC device to program.
 				options.device = g.getOptarg();
@@ -201,6 +264,10 @@ public class App {
 				// rather than by automatic preservation.
 				options.forceCalibration = true;
 				break;
+			case Options.HEX_CACHE:
+				// Set the directory in which to cache parsed input files.
+				options.hexCache = g.getOptarg();
+				break;
 			case Options.INPUT_HEXFILE:
 				// Set the name of the input hexfile.
 				options.input = g.getOptarg();
@@ -210,6 +277,10 @@ public class App {
 				// List all devices that are supported by the programmer.
 				options.listDevices = true;
 				break;
+			case Options.MERGE:
+				// Add a file to merge into the input; may be repeated.
+				options.merge.add(g.getOptarg());
+				break;
 			case Options.OUTPUT:
 				// Set the name of the output hexfile.
 				options.output = g.getOptarg();
@@ -223,6 +294,10 @@ public class App {
 				// Enable quiet mode.
 				options.quiet = true;
 				break;
+			case Options.RECORD_LENGTH:
+				// Set the number of data bytes in each hex record written.
+				options.recordBytes = Common.parseInt(g.getOptarg());
+				break;
 			case Options.SKIP_ONES:
 				// Skip memory locations that are all-ones when reading.
 				options.skipOnes = true;
@@ -284,14 +359,22 @@ public class App {
 			 * These options are specific to ardpicprog - not present in picprog
 			 */
 			new LongOpt("list-devices", LongOpt.NO_ARGUMENT, null, Options.LIST_DEVICES),
-			new LongOpt("speed", LongOpt.REQUIRED_ARGUMENT, null, Options.SPEED) };
+			new LongOpt("speed", LongOpt.REQUIRED_ARGUMENT, null, Options.SPEED),
+			new LongOpt("stream-burn", LongOpt.NO_ARGUMENT, null, Options.STREAM_BURN),
+			new LongOpt("hex-cache", LongOpt.REQUIRED_ARGUMENT, null, Options.HEX_CACHE),
+			new LongOpt("binary", LongOpt.NO_ARGUMENT, null, Options.BINARY),
+			new LongOpt("diff", LongOpt.REQUIRED_ARGUMENT, null, Options.DIFF),
+			new LongOpt("merge", LongOpt.REQUIRED_ARGUMENT, null, Options.MERGE),
+			new LongOpt("record-length", LongOpt.REQUIRED_ARGUMENT, null, Options.RECORD_LENGTH) };
 
 	static void usage(String argv0) {
 		Common.notice("Usage: " + argv0 + " --quiet -q --warranty --copying --help -h",
 				"    --device DEVTYPE -d DEVTYPE --pic-serial-port PORT -p PORT",
 				"    --input-hexfile INPUT -i INPUT --output-hexfile OUTPUT -o OUTPUT",
 				"    --ihx8m --ihx16 --ihx32 --cc-hexfile CCFILE -c CCFILE --skip-ones",
-				"    --erase --burn --force-calibration --list-devices --speed SPEED");
+				"    --erase --burn --force-calibration --list-devices --speed SPEED",
+				"    --stream-burn --hex-cache DIR --binary --diff OTHER --merge OTHER",
+				"    --record-length BYTES");
 	}
 
 	private void runWithOptions(Options options) throws IOException, FileNotFoundException {
@@ -313,7 +396,7 @@ public class App {
 			// Copy the device details into the hex file object.
 			// Get the input file data if specified.
 			//HexFile hexFile = Actions.getHexFile(options.format, details, options.input);
-			HexFileMetadata hexMeta = Actions.getHexMeta(options.format, details);
+			HexFileMetadata hexMeta = Actions.getHexMeta(options.format, options.recordBytes, details);
 
 			// Dump the type of device and how much memory it has.
 			if (options.describeDevice) {
@@ -325,12 +408,43 @@ public class App {
 			}
 
 			// If there is input to be had, now is the time.
-			if(!Common.stringEmpty(options.input)) {
-				HexFile hexFile = Actions.loadHexFile(hexMeta, options.input);
+			if(!Common.stringEmpty(options.input) && options.streamBurn) {
+				// Streaming excludes --force-calibration with --erase, so the
+				// input is not needed to erase.
+				if (options.erase) {
+					Actions.doErase(port);
+				}
+
+				Actions.doStreamingBurn(options.forceCalibration, port, hexMeta, options.input);
+			} else if(!Common.stringEmpty(options.input)) {
+				HexFile hexFile = options.binary ? Actions.loadBinaryImage(hexMeta, options.input) : Actions.loadHexFile(
+						hexMeta, options.input, options.hexCache);
+
+				// Combine the other files with the input; everything below
+				// works on the result.
+				if (!options.merge.isEmpty()) {
+					hexFile = Actions.mergeFiles(hexMeta, hexFile, options.input, options.merge, options.binary,
+							options.hexCache);
+					// The merged image is complete and held in a heap list of
+					// its own; keep it in compact, immutable form.
+					hexFile.freeze();
+				}
+
+				log.info("Input fingerprint " + ImageFingerprint.format(hexFile.fingerprint()));
 				
+				// Report where the input differs from the other file.
+				if (!Common.stringEmpty(options.diff)) {
+					HexFile otherFile = options.binary ? Actions.loadBinaryImage(hexMeta, options.diff) : Actions
+							.loadHexFile(hexMeta, options.diff, options.hexCache);
+					Actions.doDiff(hexFile, otherFile, options.diff);
+				}
+
 				// Copy the input to the CC output file.
 				if (!Common.stringEmpty(options.ccOutput)) {
-					Actions.doCCOutput(options.ccOutput, options.skipOnes, hexFile);
+					if (options.binary)
+						Actions.doBinaryCCOutput(options.ccOutput, hexFile);
+					else
+						Actions.doCCOutput(options.ccOutput, options.skipOnes, hexFile);
 				}
 				
 				// Erase the device if necessary. If --force-calibration is
@@ -351,7 +465,10 @@ public class App {
 			// If we have an output file, then read the contents of the PIC into
 			// it.
 			if (!Common.stringEmpty(options.output)) {
-				Actions.doOutput(options.output, options.skipOnes, port, hexMeta);
+				if (options.binary)
+					Actions.doBinaryOutput(options.output, port, hexMeta);
+				else
+					Actions.doOutput(options.output, options.skipOnes, port, hexMeta);
 			}
 		} finally {
 			if (port != null) {
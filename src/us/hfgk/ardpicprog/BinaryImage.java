@@ -0,0 +1,85 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+
+/**
+ * Reads and writes raw binary device images. The areas from
+ * {@link HexFileMetadata#getAreas()} are laid out one after another, in that
+ * order, with no headers. Each word takes one byte in an area at most 8 bits
+ * wide and two little-endian bytes otherwise. Words missing from an image
+ * being saved are written as all ones.
+ */
+class BinaryImage {
+	private static final int CHUNK_WORDS = 4096;
+
+	private static int bytesPerWord(HexFileMetadata metadata, IntRange area) {
+		return (metadata.bitWidthAtAddress(area.start()) <= 8) ? 1 : 2;
+	}
+
+	static long imageSize(HexFileMetadata metadata) {
+		long size = 0;
+		for (Tuple2<String, IntRange> area : metadata.getAreas())
+			size += (long) area._2.size() * bytesPerWord(metadata, area._2);
+		return size;
+	}
+
+	public static HexFile load(HexFileMetadata metadata, ByteBuffer buffer) throws IOException {
+		long expected = imageSize(metadata);
+		if (buffer.remaining() != expected)
+			throw new HexFileException("Binary image is " + buffer.remaining() + " bytes; expected " + expected
+					+ " for this device");
+
+		buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		ShortList words = Common.getBlankShortList(metadata);
+
+		for (Tuple2<String, IntRange> area : metadata.getAreas()) {
+			IntRange range = area._2;
+			if (range.isEmpty())
+				continue;
+
+			short[] values = new short[range.size()];
+			if (bytesPerWord(metadata, range) == 1) {
+				for (int i = 0; i < values.length; ++i)
+					values[i] = (short) (buffer.get() & 0xFF);
+			} else {
+				buffer.asShortBuffer().get(values);
+				buffer.position(buffer.position() + 2 * values.length);
+			}
+			words.setRange(range.start(), values, 0, values.length);
+		}
+
+		return new HexFile(metadata, words);
+	}
+
+	public static void save(HexFile hex, String output) throws IOException {
+		HexFileMetadata metadata = hex.getMetadata();
+		List<Tuple2<String, IntRange>> areas = metadata.getAreas();
+		MappedByteBuffer mapped = Common.mapForWrite(output, imageSize(metadata));
+		ByteBuffer buffer = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		WordWindow window = new WordWindow(CHUNK_WORDS);
+
+		for (Tuple2<String, IntRange> area : areas) {
+			IntRange range = area._2;
+			boolean narrow = bytesPerWord(metadata, range) == 1;
+			int start = range.start();
+			while (start < range.post()) {
+				window.load(metadata, hex.getWords(), IntRange.getPost(start, range.post()));
+				int size = window.post() - window.start();
+				if (narrow) {
+					for (int i = 0; i < size; ++i)
+						buffer.put((byte) window.words[i]);
+				} else {
+					buffer.asShortBuffer().put(window.words, 0, size);
+					buffer.position(buffer.position() + 2 * size);
+				}
+				start = window.post();
+			}
+		}
+
+		mapped.force();
+	}
+}
@@ -3,18 +3,24 @@ package us.hfgk.ardpicprog;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 abstract class Common {
 	private Common() {
@@ -147,12 +153,95 @@ abstract class Common {
 		}
 	}
 
-	static InputStream openForRead(String input) throws FileNotFoundException {
-		return new BufferedInputStream(new FileInputStream(input));
+	// Large enough to keep a compressed stream fed from slow storage.
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private static final int GZIP_MAGIC_0 = 0x1F;
+	private static final int GZIP_MAGIC_1 = 0x8B;
+
+	// Opens the file for reading, transparently decompressing it if it is
+	// gzip-compressed.
+	static InputStream openForRead(String input) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(input), STREAM_BUFFER_SIZE);
+		try {
+			if (startsWithGzipMagic(in))
+				in = new BufferedInputStream(new GZIPInputStream(in, STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE);
+		} catch (IOException e) {
+			closeWarnOnError(in, Logger.getLogger(Common.class.getName()));
+			throw e;
+		}
+		return in;
+	}
+
+	// Checks for the gzip header without consuming it. The stream must
+	// support mark().
+	private static boolean startsWithGzipMagic(InputStream in) throws IOException {
+		in.mark(2);
+		try {
+			return in.read() == GZIP_MAGIC_0 && in.read() == GZIP_MAGIC_1;
+		} finally {
+			in.reset();
+		}
+	}
+
+	static boolean isRegularFile(String input) {
+		return new File(input).isFile();
+	}
+
+	// True if the file can be mapped and parsed in place: a regular file
+	// that is not gzip-compressed.
+	static boolean isMappable(String input) throws IOException {
+		if (!isRegularFile(input))
+			return false;
+		InputStream in = new BufferedInputStream(new FileInputStream(input), 2);
+		try {
+			return !startsWithGzipMagic(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	// Maps the entire file read-only. The mapping remains valid after the
+	// channel is closed.
+	static MappedByteBuffer mapForRead(String input) throws IOException {
+		FileInputStream in = new FileInputStream(input);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(input + ": File too large to map");
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			in.close();
+		}
+	}
+
+	// Creates or truncates the file to size bytes and maps it read-write.
+	static MappedByteBuffer mapForWrite(String output, long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(output + ": File too large to map");
+		RandomAccessFile file = new RandomAccessFile(output, "rw");
+		try {
+			file.setLength(size);
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			file.close();
+		}
 	}
 
-	static OutputStream openForWrite(String filename) throws FileNotFoundException {
-		return new BufferedOutputStream(new FileOutputStream(filename));
+	// Opens the file for writing, gzip-compressing the output if the name ends
+	// in ".gz".
+	static OutputStream openForWrite(String filename) throws IOException {
+		OutputStream out = new FileOutputStream(filename);
+		if (filename.endsWith(".gz")) {
+			try {
+				out = new GZIPOutputStream(out, STREAM_BUFFER_SIZE);
+			} catch (IOException e) {
+				closeWarnOnError(out, Logger.getLogger(Common.class.getName()));
+				throw e;
+			}
+		}
+		return new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
 	}
 
 	static void notice(String... string) {
@@ -215,12 +304,26 @@ abstract class Common {
 		return closeWarnOnError(stream, log, null);
 	}
 
+	private static final class PoolHolder {
+		static final ForkJoinPool pool = new ForkJoinPool();
+	}
+
+	// Shared by everything that splits work across cores.
+	static ForkJoinPool getForkJoinPool() {
+		return PoolHolder.pool;
+	}
+
 	static ShortList getBlankShortList() {
-		return new DumbShortList();
+		return new PagedShortList();
+	}
+
+	// Stores words as compactly as the device's word widths allow.
+	static ShortList getBlankShortList(HexFileMetadata metadata) {
+		return new PagedShortList(metadata);
 	}
 
 	static ReadableShortList getBlankReadableShortList() {
-		return new DumbShortList();
+		return new PagedShortList();
 	}
 
 	private static void copyIntsToShortArray0(int[] src, int srcIndex, short[] dest, int destIndex, int length) {
@@ -0,0 +1,189 @@
+package us.hfgk.ardpicprog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * List whose words are stored extent after extent outside the Java heap, in a
+ * direct or mapped {@link ByteBuffer}. The list is a view of the buffer:
+ * nothing is copied when it is made, reads come straight from the buffer, and
+ * writes go straight to it, so a list over a file mapped for writing fills
+ * the file. Lookups use a binary search of the extents.
+ * <p>
+ * The extents are fixed when the list is made; only indices within them can
+ * be set. {@link #close} releases the buffer, after which the list may not be
+ * used.
+ */
+final class DirectShortList implements ReadableShortList, ShortWriter, Closeable {
+	// Values are passed to run visitors this many at a time.
+	private static final int CHUNK_SIZE = 4096;
+
+	private final int[] starts;
+	private final int[] lengths;
+	private final int[] offsets;
+	private final IntRangeSet extents;
+	private ShortBuffer words;
+
+	private DirectShortList(int[] starts, int[] lengths, ShortBuffer words) {
+		if (starts.length != lengths.length)
+			throw new IllegalArgumentException();
+
+		this.starts = starts;
+		this.lengths = lengths;
+		this.offsets = new int[starts.length];
+		this.words = words;
+
+		IntRangeSet.Builder extents = new IntRangeSet.Builder();
+		long offset = 0;
+		for (int i = 0; i < starts.length; ++i) {
+			if (lengths[i] < 0 || (i > 0 && starts[i] < starts[i - 1] + lengths[i - 1]))
+				throw new IllegalArgumentException("Extents must be ascending and must not overlap");
+			extents.add(starts[i], starts[i] + lengths[i]);
+			offsets[i] = (int) offset;
+			offset += lengths[i];
+		}
+		if (offset > words.limit())
+			throw new IllegalArgumentException("Extents exceed word buffer");
+		this.extents = extents.build();
+	}
+
+	/**
+	 * Returns a list with the given extents whose words are the remaining
+	 * bytes of {@code buffer}, read as shorts in the buffer's byte order. The
+	 * words of each extent follow those of the one before. If
+	 * {@code buffer} is read-only, setting a word throws
+	 * {@link java.nio.ReadOnlyBufferException}.
+	 */
+	static DirectShortList wrap(ByteBuffer buffer, int[] starts, int[] lengths) {
+		return new DirectShortList(starts, lengths, buffer.slice().order(buffer.order()).asShortBuffer());
+	}
+
+	/**
+	 * Returns the number of bytes needed to hold the words of
+	 * {@code extents}.
+	 */
+	static long bytesFor(IntRangeSet extents) {
+		return 2 * extents.wordCount();
+	}
+
+	private ShortBuffer words() {
+		if (words == null)
+			throw new IllegalStateException("List has been closed");
+		return words;
+	}
+
+	/**
+	 * Drops this list's reference to its buffer, so that the memory can be
+	 * released or the file unmapped as soon as nothing else refers to it.
+	 */
+	@Override
+	public void close() {
+		words = null;
+	}
+
+	// Index of the extent containing index, or -1.
+	private int extentIndexOf(int index) {
+		int lo = 0;
+		int hi = starts.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (starts[mid] > index)
+				hi = mid - 1;
+			else if (starts[mid] + lengths[mid] <= index)
+				lo = mid + 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	@Override
+	public IntRangeSet extents() {
+		return extents;
+	}
+
+	@Override
+	public short get(int index, short defaultValue) {
+		int e = extentIndexOf(index);
+		return (e < 0) ? defaultValue : words().get(offsets[e] + index - starts[e]);
+	}
+
+	@Override
+	public Short get(int index) {
+		int e = extentIndexOf(index);
+		return (e < 0) ? null : words().get(offsets[e] + index - starts[e]);
+	}
+
+	/**
+	 * Sets words within one extent of this list.
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             if any of the indices is outside the extent containing
+	 *             {@code index}
+	 */
+	@Override
+	public void setRange(int index, short[] source, int offset, int length) {
+		if (length == 0)
+			return;
+		int e = extentIndexOf(index);
+		if (e < 0 || index + length > starts[e] + lengths[e])
+			throw new IndexOutOfBoundsException("Words " + index + "+" + length + " are not within an extent");
+
+		ShortBuffer view = words().duplicate();
+		view.position(offsets[e] + index - starts[e]);
+		view.put(source, offset, length);
+	}
+
+	@Override
+	public int writeTo(ShortSink sink, IntRange range) throws IOException {
+		int actualCopiedCount = 0;
+		short[] send = new short[0];
+
+		for (int i = 0; i < starts.length; ++i) {
+			IntRange part = IntRange.getSize(starts[i], lengths[i]).intersection(range);
+			if (part.isEmpty())
+				continue;
+
+			if (send.length < part.size())
+				send = new short[part.size()];
+
+			ShortBuffer view = words().duplicate();
+			view.position(offsets[i] + part.start() - starts[i]);
+			view.get(send, 0, part.size());
+
+			sink.writeFrom(part, send, 0);
+			actualCopiedCount += part.size();
+		}
+
+		return actualCopiedCount;
+	}
+
+	@Override
+	public int forEachRun(IntRange range, ShortSink visitor) throws IOException {
+		int visitedCount = 0;
+		short[] chunk = null;
+
+		// Sinks take arrays, so the words pass through one reusable chunk
+		// rather than being copied onto the heap as a whole.
+		for (int i = 0; i < starts.length; ++i) {
+			IntRange part = IntRange.getSize(starts[i], lengths[i]).intersection(range);
+			if (part.isEmpty())
+				continue;
+
+			if (chunk == null)
+				chunk = new short[CHUNK_SIZE];
+			ShortBuffer view = words().duplicate();
+			view.position(offsets[i] + part.start() - starts[i]);
+			for (int start = part.start(); start < part.post(); start += CHUNK_SIZE) {
+				int length = Math.min(CHUNK_SIZE, part.post() - start);
+				view.get(chunk, 0, length);
+				visitor.writeFrom(IntRange.getSize(start, length), chunk, 0);
+			}
+			visitedCount += part.size();
+		}
+
+		return visitedCount;
+	}
+}
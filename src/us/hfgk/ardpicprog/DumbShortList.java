@@ -1,65 +1,45 @@
 package us.hfgk.ardpicprog;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Implementation of ShortList that uses only a resizable int buffer. 
+ * Implementation of ShortList that uses only a resizable int buffer, plus an
+ * index of the populated runs. 
  */
 public class DumbShortList implements ShortList {
 	private static final Logger log = Logger.getLogger(DumbShortList.class.getName());
 
+	// Values are passed to run visitors this many at a time.
+	private static final int CHUNK_SIZE = 4096;
+
 	private int[] buffer = new int[0];
+	private final RunIndex runs = new RunIndex();
 
 	private void ensureCapacity(int size) {
 		if (size > buffer.length) {
 			int oldLength = buffer.length;
 
-			buffer = Arrays.copyOf(buffer, size);
+			// Grow geometrically so that filling the list in ascending order
+			// takes linear time.
+			int newLength = oldLength + (oldLength >> 1);
+			if (newLength < size)
+				newLength = size;
+
+			buffer = Arrays.copyOf(buffer, newLength);
 			Arrays.fill(buffer, oldLength, buffer.length, -1);
 		}
 	}
 
-	private List<IntRange> extentsWithin(IntRange overRange) {
-		ArrayList<IntRange> ranges = new ArrayList<IntRange>();
-
-		IntRange range = IntRange.empty(overRange.start());
-		int post = overRange.post();
-
-		while (!(range = firstRangeAfter(range, post)).isEmpty()) {
-			ranges.add(range);
-		}
-
-		ranges.trimToSize();
-		return Collections.unmodifiableList(ranges);
+	private IntRangeSet extentsWithin(IntRange overRange) {
+		return runs.within(overRange);
 	}
 
 	@Override
-	public List<IntRange> extents() {
-		return extentsWithin(IntRange.getPost(0, buffer.length));
-	}
-
-	private IntRange firstRangeAfter(IntRange previous, int post) {
-		return firstRange(previous.post(), post);
-	}
-
-	private IntRange firstRange(int start, int post) {
-		int startRange, postRange;
-
-		for (startRange = start; startRange < post; ++startRange) {
-			if (buffer[startRange] >= 0)
-				break;
-		}
-		for (postRange = startRange; postRange < post; ++postRange) {
-			if (buffer[postRange] < 0)
-				break;
-		}
-
-		return IntRange.getPost(startRange, postRange);
+	public IntRangeSet extents() {
+		return runs.all();
 	}
 
 	@Override
@@ -82,12 +62,13 @@ public class DumbShortList implements ShortList {
 
 	@Override
 	public int writeTo(ShortSink sink, IntRange writeRange) throws IOException {
-		List<IntRange> ranges = extentsWithin(writeRange);
+		IntRangeSet ranges = extentsWithin(writeRange);
 		int actualCopiedCount = 0;
 
 		short[] send = new short[0];
 
-		for (IntRange range : ranges) {
+		for (int i = 0; i < ranges.size(); ++i) {
+			IntRange range = ranges.get(i);
 			log.finest("On range: " + range);
 			if (send.length < range.size()) {
 				send = new short[range.size()];
@@ -105,24 +86,50 @@ public class DumbShortList implements ShortList {
 		return actualCopiedCount;
 	}
 
+	@Override
+	public int forEachRun(IntRange range, ShortSink visitor) throws IOException {
+		int visitedCount = 0;
+		short[] chunk = null;
+
+		IntRangeSet runs = extentsWithin(range);
+		for (int i = 0; i < runs.size(); ++i) {
+			int post = runs.post(i);
+			if (chunk == null)
+				chunk = new short[CHUNK_SIZE];
+			for (int start = runs.start(i); start < post; start += CHUNK_SIZE) {
+				int length = Math.min(CHUNK_SIZE, post - start);
+				Common.copyIntsToShortArray(buffer, start, chunk, 0, length);
+				visitor.writeFrom(IntRange.getSize(start, length), chunk, 0);
+			}
+			visitedCount += post - runs.start(i);
+		}
+
+		return visitedCount;
+	}
+
 	@Override
 	public void clear() {
 		buffer = new int[0];
+		runs.clear();
 	}
 
 	@Override
 	public void set(int index, short value) {
-		log.finest("Set index " + index + " <- " + value);
+		if (log.isLoggable(Level.FINEST))
+			log.finest("Set index " + index + " <- " + value);
 		ensureCapacity(index + 1);
 		buffer[index] = 0xFFFF & (int) value;
+		runs.add(index, index + 1);
 	}
 
-	private void writeAt(int index, short[] source, int offset, int length) {
+	@Override
+	public void setRange(int index, short[] source, int offset, int length) {
 		if (index < 0 || offset < 0 || length < 0 || offset + length > source.length)
 			throw new IndexOutOfBoundsException();
 		ensureCapacity(index + length);
 
 		Common.copyUnsignedShortsToIntArray(source, offset, buffer, index, length);
+		runs.add(index, index + length);
 	}
 
 	@Override
@@ -130,7 +137,7 @@ public class DumbShortList implements ShortList {
 		log.finest("Set indices " + range + " from source");
 		short[] receive = new short[range.size()];
 		source.readTo(range, receive, 0);
-		writeAt(range.start(), receive, 0, receive.length);
+		setRange(range.start(), receive, 0, receive.length);
 	}
 
 }
@@ -0,0 +1,244 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable ReadableShortList made by {@link #freeze} from a finished image.
+ * Each extent is stored as a series of segments: literal segments hold their
+ * words, and erased segments, in which every word is the all-ones word for
+ * its address, hold only their bounds. An image that is mostly erased then
+ * takes little more memory than its programmed words.
+ * <p>
+ * Nothing is changed after construction, so a frozen list may be shared
+ * between threads without locking.
+ */
+final class FrozenShortList implements ReadableShortList {
+	// Erased stretches shorter than this stay in literal segments, where they
+	// cost less than a segment of their own.
+	private static final int MIN_ERASED_RUN = 16;
+
+	private static final int CHUNK_WORDS = 4096;
+
+	private final HexFileMetadata metadata;
+	private final IntRangeSet extents;
+
+	// Segment i covers [starts[i], posts[i]); its words are literals[i], or
+	// the all-ones words if that is null.
+	private final int[] starts;
+	private final int[] posts;
+	private final short[][] literals;
+
+	private FrozenShortList(HexFileMetadata metadata, IntRangeSet extents, Builder builder) {
+		this.metadata = metadata;
+		this.extents = extents;
+		int count = builder.literals.size();
+		this.starts = Arrays.copyOf(builder.starts, count);
+		this.posts = Arrays.copyOf(builder.posts, count);
+		this.literals = builder.literals.toArray(new short[count][]);
+	}
+
+	/**
+	 * Returns an immutable copy of {@code words}. The all-ones word for each
+	 * address is taken from {@code metadata}.
+	 */
+	static FrozenShortList freeze(HexFileMetadata metadata, ReadableShortList words) throws IOException {
+		if (words instanceof FrozenShortList && ((FrozenShortList) words).metadata == metadata)
+			return (FrozenShortList) words;
+
+		IntRangeSet extents = words.extents();
+		Builder builder = new Builder(metadata);
+		WordWindow window = new WordWindow(CHUNK_WORDS);
+
+		for (int e = 0; e < extents.size(); ++e) {
+			int start = extents.start(e);
+			int post = extents.post(e);
+			while (start < post) {
+				window.load(metadata, words, IntRange.getPost(start, post));
+				int size = window.post() - window.start();
+				for (int i = 0; i < size; ++i)
+					builder.add(window.start() + i, window.words[i], window.words[i] == window.blanks[i]);
+				start = window.post();
+			}
+			builder.endExtent();
+		}
+
+		return new FrozenShortList(metadata, extents, builder);
+	}
+
+	// Accumulates segments one word at a time.
+	private static final class Builder {
+		final HexFileMetadata metadata;
+		int[] starts = new int[16];
+		int[] posts = new int[16];
+		final List<short[]> literals = new ArrayList<short[]>();
+
+		// Literal words not yet made into a segment.
+		short[] pending = new short[CHUNK_WORDS];
+		int pendingStart;
+		int pendingCount = 0;
+
+		// Erased words following the pending literals.
+		int erasedStart;
+		int erasedCount = 0;
+
+		Builder(HexFileMetadata metadata) {
+			this.metadata = metadata;
+		}
+
+		void add(int address, short value, boolean erased) {
+			if (erased) {
+				if (erasedCount == 0)
+					erasedStart = address;
+				++erasedCount;
+				return;
+			}
+			if (erasedCount > 0)
+				endErased();
+			if (pendingCount == 0)
+				pendingStart = address;
+			append(value);
+		}
+
+		void endExtent() {
+			if (erasedCount > 0)
+				endErased();
+			flushLiteral();
+		}
+
+		// A long erased stretch becomes its own segment; a short one joins
+		// the literal words.
+		private void endErased() {
+			if (erasedCount >= MIN_ERASED_RUN) {
+				flushLiteral();
+				addSegment(erasedStart, erasedStart + erasedCount, null);
+			} else {
+				if (pendingCount == 0)
+					pendingStart = erasedStart;
+				for (int i = 0; i < erasedCount; ++i)
+					append(metadata.fullWordAtAddress(erasedStart + i));
+			}
+			erasedCount = 0;
+		}
+
+		private void append(short value) {
+			if (pendingCount == pending.length)
+				pending = Arrays.copyOf(pending, pending.length * 2);
+			pending[pendingCount++] = value;
+		}
+
+		private void flushLiteral() {
+			if (pendingCount > 0)
+				addSegment(pendingStart, pendingStart + pendingCount, Arrays.copyOf(pending, pendingCount));
+			pendingCount = 0;
+		}
+
+		private void addSegment(int start, int post, short[] words) {
+			int i = literals.size();
+			if (i == starts.length) {
+				starts = Arrays.copyOf(starts, i * 2);
+				posts = Arrays.copyOf(posts, i * 2);
+			}
+			starts[i] = start;
+			posts[i] = post;
+			literals.add(words);
+		}
+	}
+
+	// Index of the segment containing index, or -1.
+	private int segmentOf(int index) {
+		int i = Arrays.binarySearch(starts, index);
+		if (i < 0)
+			i = -i - 2;
+		return (i >= 0 && index < posts[i]) ? i : -1;
+	}
+
+	// Index of the first segment that ends after index.
+	private int firstSegmentAfter(int index) {
+		int i = Arrays.binarySearch(starts, index);
+		if (i < 0) {
+			i = -i - 2;
+			if (i < 0 || index >= posts[i])
+				++i;
+		}
+		return i;
+	}
+
+	@Override
+	public IntRangeSet extents() {
+		return extents;
+	}
+
+	@Override
+	public short get(int index, short defaultValue) {
+		int i = segmentOf(index);
+		if (i < 0)
+			return defaultValue;
+		short[] words = literals[i];
+		return (words != null) ? words[index - starts[i]] : metadata.fullWordAtAddress(index);
+	}
+
+	@Override
+	public Short get(int index) {
+		int i = segmentOf(index);
+		if (i < 0)
+			return null;
+		short[] words = literals[i];
+		return (words != null) ? words[index - starts[i]] : metadata.fullWordAtAddress(index);
+	}
+
+	@Override
+	public int writeTo(ShortSink sink, IntRange writeRange) throws IOException {
+		int actualCopiedCount = 0;
+		short[] send = new short[0];
+
+		IntRangeSet ranges = extents.intersection(writeRange);
+		for (int r = 0; r < ranges.size(); ++r) {
+			IntRange range = ranges.get(r);
+			if (send.length < range.size())
+				send = new short[range.size()];
+
+			for (int i = firstSegmentAfter(range.start()); i < starts.length && starts[i] < range.post(); ++i) {
+				IntRange part = IntRange.getPost(starts[i], posts[i]).intersection(range);
+				int destIndex = part.start() - range.start();
+				if (literals[i] != null)
+					System.arraycopy(literals[i], part.start() - starts[i], send, destIndex, part.size());
+				else
+					metadata.fillFullWords(part, send, destIndex);
+			}
+
+			sink.writeFrom(range, send, 0);
+			actualCopiedCount += range.size();
+		}
+
+		return actualCopiedCount;
+	}
+
+	@Override
+	public int forEachRun(IntRange range, ShortSink visitor) throws IOException {
+		int visitedCount = 0;
+		short[] erased = null;
+
+		// Literal segments are passed as they are; erased ones are filled in
+		// a chunk at a time.
+		for (int i = firstSegmentAfter(range.start()); i < starts.length && starts[i] < range.post(); ++i) {
+			IntRange part = IntRange.getPost(starts[i], posts[i]).intersection(range);
+			if (literals[i] != null) {
+				visitor.writeFrom(part, literals[i], part.start() - starts[i]);
+			} else {
+				if (erased == null)
+					erased = new short[CHUNK_WORDS];
+				for (int start = part.start(); start < part.post(); start += CHUNK_WORDS) {
+					IntRange piece = IntRange.getPost(start, Math.min(part.post(), start + CHUNK_WORDS));
+					metadata.fillFullWords(piece, erased, 0);
+					visitor.writeFrom(piece, erased, 0);
+				}
+			}
+			visitedCount += part.size();
+		}
+
+		return visitedCount;
+	}
+}
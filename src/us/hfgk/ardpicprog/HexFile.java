@@ -13,11 +13,22 @@ public class HexFile {
 
 	private ReadableShortList words;
 
+	// Fingerprint of words, or null until it is first asked for.
+	private Long fingerprint;
+
 	public HexFile(Map<String, String> details, int format, ReadableShortList words) throws HexFileException {
 		this(new DeviceDetails(details), format, words);
 	}
 
 	public HexFile(HexFileMetadata metadata, ReadableShortList words) throws HexFileException {
+		this(metadata, words, null);
+	}
+
+	/**
+	 * Creates a file whose words are known to have the given fingerprint, as
+	 * computed by an {@link ImageFingerprint} while they were loaded.
+	 */
+	HexFile(HexFileMetadata metadata, ReadableShortList words, Long fingerprint) throws HexFileException {
 		if(metadata == null)
 			throw new IllegalArgumentException();
 		
@@ -26,6 +37,7 @@ public class HexFile {
 		
 		this.metadata = metadata;
 		this.words = words;
+		this.fingerprint = fingerprint;
 	}
 	
 	public HexFile(DeviceDetails device, int format, ReadableShortList words) throws HexFileException {
@@ -42,10 +54,32 @@ public class HexFile {
 	public static final int FORMAT_IHX16 = 1;
 	public static final int FORMAT_IHX32 = 2;
 
-	public List<IntRange> extents() {
+	public IntRangeSet extents() {
 		return words.extents();
 	}
 
+	/**
+	 * Replaces the words of this file with an immutable copy in which erased
+	 * runs take no space. Call once the image is complete. Words that are
+	 * already read-only, such as those mapped from the image cache, are left
+	 * as they are rather than copied onto the heap.
+	 */
+	public void freeze() throws IOException {
+		if (words instanceof ShortList)
+			words = FrozenShortList.freeze(metadata, words);
+	}
+
+	/**
+	 * Returns the {@link ImageFingerprint} of the words of this file. Files
+	 * loaded by the parser already know theirs; others are hashed once, on
+	 * the first call.
+	 */
+	public long fingerprint() throws IOException {
+		if (fingerprint == null)
+			fingerprint = ImageFingerprint.of(metadata, words);
+		return fingerprint;
+	}
+
 	public short word(int address) {
 		return words.get(address, metadata.fullWordAtAddress(address));
 	}
@@ -62,13 +96,15 @@ public class HexFile {
 		return wouldBeAllOnes(address, word(address));
 	}
 
-	public boolean canForceCalibration() {
-		if (getMetadata().getDevice().reservedRange.isEmpty())
+	public boolean canForceCalibration() throws IOException {
+		IntRange reserved = getMetadata().getDevice().reservedRange;
+		if (reserved.isEmpty())
 			return true; // No reserved words, so force is trivially ok.
 
-		int post = getMetadata().getDevice().reservedRange.post();
-		for (int address = getMetadata().getDevice().reservedRange.start(); address < post; ++address) {
-			if (!isAllOnes(address))
+		WordWindow window = new WordWindow(reserved.size());
+		window.load(metadata, words, reserved);
+		for (int i = 0; i < reserved.size(); ++i) {
+			if (window.words[i] != window.blanks[i])
 				return true;
 		}
 
@@ -159,12 +195,7 @@ public class HexFile {
 	}
 
 	public void writeTo(ShortSink sink, boolean forceCalibration) throws IOException {
-		// If the test is true, calibration forced or no reserved words to worry
-		// about.
-		// Else, assumes: reserved words are always at the end of program
-		// memory.
-		IntRange programRangeForWrite = (forceCalibration || getMetadata().getDevice().reservedRange.isEmpty()) ? getMetadata().getDevice().programRange
-				: programStartToReservedStart();
+		IntRange programRangeForWrite = getMetadata().programRangeForWrite(forceCalibration);
 
 		// Write the contents of program memory.
 		writeArea(sink, "program memory", programRangeForWrite, getMetadata().getDevice().programRange.isEmpty());
@@ -179,10 +210,6 @@ public class HexFile {
 		log.info("done.");
 	}
 
-	private IntRange programStartToReservedStart() {
-		return IntRange.getPost(getMetadata().getDevice().programRange.start(), getMetadata().getDevice().reservedRange.start());
-	}
-
 	private void writeArea(ShortSink sink, String desc, IntRange range, boolean skip) throws IOException {
 		if (skip)
 			log.info("Skipped burning " + desc + ",");
@@ -196,4 +223,8 @@ public class HexFile {
 		return metadata;
 	}
 
+	ReadableShortList getWords() {
+		return words;
+	}
+
 }
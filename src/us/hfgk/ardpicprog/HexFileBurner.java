@@ -0,0 +1,135 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Burns a hex file while it is still being parsed. The parser runs on its own
+ * thread and passes runs of words through a bounded queue, so burning starts
+ * as soon as the first records have been read and memory use does not grow
+ * with the size of the file. A bad record is only found when the parser
+ * reaches it, by which time the words before it have been burned.
+ */
+class HexFileBurner {
+	private static final Logger log = Logger.getLogger(HexFileBurner.class.getName());
+
+	private static final int MAX_PENDING_RUNS = 16;
+
+	static void burn(HexFileMetadata metadata, final ByteBuffer input, ShortSink sink, boolean forceCalibration)
+			throws IOException {
+		// A word can only be sent once no later record could change it, which
+		// requires records in ascending order. Otherwise, buffer everything.
+		if (!HexFileParser.hasAscendingRecords(input.duplicate())) {
+			log.info("Hex file records are not in ascending order; loading entire file before burning");
+			HexFileParser.load(metadata, input).writeTo(sink, forceCalibration);
+			return;
+		}
+
+		final ShortRunQueue queue = new ShortRunQueue(MAX_PENDING_RUNS);
+		Thread parser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					HexFileParser.parse(queue, input);
+					queue.finish();
+				} catch (IOException e) {
+					queue.fail(e);
+				} catch (ShortRunQueue.CancelledException e) {
+					// The burn was abandoned; nothing is waiting for the rest.
+				} catch (RuntimeException e) {
+					queue.fail(new HexFileException(e));
+				}
+			}
+		}, "hex-parser");
+		parser.setDaemon(true);
+		parser.start();
+
+		try {
+			writeRuns(metadata, queue, sink, forceCalibration);
+		} finally {
+			parser.interrupt();
+		}
+	}
+
+	private static void writeRuns(HexFileMetadata metadata, ShortRunQueue queue, ShortSink sink,
+			boolean forceCalibration) throws IOException {
+		DeviceDetails device = metadata.getDevice();
+		RunWriter writer = new RunWriter(sink, metadata.programRangeForWrite(forceCalibration), device.dataRange,
+				device.configRange);
+
+		if (device.programRange.isEmpty())
+			log.info("Skipped burning program memory,");
+		if (device.dataRange.isEmpty())
+			log.info("Skipped burning data memory,");
+		log.info("Burning program memory and data memory as the file is parsed,");
+
+		try {
+			queue.drainTo(writer);
+		} catch (IOException e) {
+			int burned = writer.programCount + writer.dataCount;
+			if (burned > 0)
+				log.severe("Burning stopped after " + burned + ((burned == 1) ? " location" : " locations")
+						+ "; the device is only partly programmed");
+			throw e;
+		}
+		reportCount(writer.programCount + writer.dataCount);
+
+		// Config memory still goes last, in case the configuration word turns
+		// on code or data protection.
+		if (device.configRange.isEmpty()) {
+			log.info("Skipped burning id words and fuses,");
+		} else {
+			log.info("Burning id words and fuses,");
+			reportCount(writer.configWords.writeTo(sink, device.configRange));
+		}
+
+		log.info("done.");
+	}
+
+	private static void reportCount(int count) {
+		log.info((count == 1) ? " 1 location," : " " + count + " locations,");
+	}
+
+	/**
+	 * Sends the parts of each run that fall in program or data memory straight
+	 * to the sink, and holds back config words until the end.
+	 */
+	private static final class RunWriter implements ShortRunQueue.RunVisitor {
+		private final ShortSink sink;
+		private final IntRange programRange;
+		private final IntRange dataRange;
+		private final IntRange configRange;
+
+		final ShortList configWords = Common.getBlankShortList();
+		int programCount = 0;
+		int dataCount = 0;
+
+		RunWriter(ShortSink sink, IntRange programRange, IntRange dataRange, IntRange configRange) {
+			this.sink = sink;
+			this.programRange = programRange;
+			this.dataRange = dataRange;
+			this.configRange = configRange;
+		}
+
+		@Override
+		public void visit(int start, short[] words, int length) throws IOException {
+			IntRange run = IntRange.getSize(start, length);
+
+			programCount += writeWithin(run, programRange, words);
+			dataCount += writeWithin(run, dataRange, words);
+
+			IntRange config = run.intersection(configRange);
+			if (!config.isEmpty())
+				configWords.setRange(config.start(), words, config.start() - start, config.size());
+		}
+
+		private int writeWithin(IntRange run, IntRange area, short[] words) throws IOException {
+			IntRange part = run.intersection(area);
+			if (part.isEmpty())
+				return 0;
+			sink.writeFrom(part, words, part.start() - run.start());
+			return part.size();
+		}
+	}
+}
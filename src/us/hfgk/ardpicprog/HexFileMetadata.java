@@ -1,25 +1,47 @@
 package us.hfgk.ardpicprog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 public class HexFileMetadata {
+	// Data bytes per record written when no other length is given.
+	public static final int DEFAULT_RECORD_BYTES = 16;
+
 	private final int format;
+	private final int recordBytes;
 	private final DeviceDetails device;
+	private final short programFullWord;
+	private final short dataFullWord;
 
 	public HexFileMetadata(DeviceDetails device, int format) throws HexFileException {
+		this(device, format, DEFAULT_RECORD_BYTES);
+	}
+
+	public HexFileMetadata(DeviceDetails device, int format, int recordBytes) throws HexFileException {
 		if (device == null) {
 			device = new DeviceDetails(Collections.<String, String> emptyMap());
 		}
 		this.device = device;
 		this.format = validateFormat(format);
+		this.recordBytes = validateRecordBytes(recordBytes);
+		this.programFullWord = (short) ((1 << device.programBits) - 1);
+		this.dataFullWord = (short) ((1 << device.dataBits) - 1);
 	}
 
 	public int getFormat() {
 		return format;
 	}
 
+	/**
+	 * Returns the number of data bytes in each full record written to a hex
+	 * file.
+	 */
+	public int getRecordBytes() {
+		return recordBytes;
+	}
+
 	public DeviceDetails getDevice() {
 		return device;
 	}
@@ -36,6 +58,23 @@ public class HexFileMetadata {
 		}
 	}
 	
+	// A record holds whole words and at most 255 data bytes.
+	static int validateRecordBytes(int recordBytes) throws HexFileException {
+		if (recordBytes < 2 || recordBytes > 255 || (recordBytes % 2) != 0)
+			throw new HexFileException("Record length must be an even number of bytes from 2 to 254");
+		return recordBytes;
+	}
+
+	/**
+	 * Returns the address of the device ID word, or -1 if the device has
+	 * none. The ID word belongs to the chip rather than to the image, so it
+	 * is not saved, compared or fingerprinted.
+	 */
+	int deviceIdAddress() {
+		// The device ID word is at _configRange.start + 6.
+		return (device.configRange.size() >= 8) ? device.configRange.start() + 6 : -1;
+	}
+
 	int programSizeWords() {
 		return device.programRange.size();
 	}
@@ -48,10 +87,44 @@ public class HexFileMetadata {
 		return device.dataRange.containsValue(address) ? getDevice().dataBits : getDevice().programBits;
 	}
 	
+	/**
+	 * Returns the greatest word width at any address in {@code range}, or 0
+	 * if it is empty.
+	 */
+	int maxBitWidthWithin(IntRange range) {
+		if (range.isEmpty())
+			return 0;
+		IntRange data = range.intersection(device.dataRange);
+		int width = data.isEmpty() ? 0 : device.dataBits;
+		if (data.size() < range.size())
+			width = Math.max(width, device.programBits);
+		return width;
+	}
+
 	public short fullWordAtAddress(int address) {
-		return (short) ((1 << bitWidthAtAddress(address)) - 1);
+		return device.dataRange.containsValue(address) ? dataFullWord : programFullWord;
+	}
+
+	/**
+	 * Stores the all-ones word for each address in {@code range} into
+	 * {@code dest}, starting at {@code offset}.
+	 */
+	void fillFullWords(IntRange range, short[] dest, int offset) {
+		Arrays.fill(dest, offset, offset + range.size(), programFullWord);
+		IntRange data = range.intersection(device.dataRange);
+		if (!data.isEmpty())
+			Arrays.fill(dest, offset + data.start() - range.start(), offset + data.post() - range.start(), dataFullWord);
 	}
 	
+	IntRange programRangeForWrite(boolean forceCalibration) {
+		// If the test is true, calibration forced or no reserved words to worry
+		// about.
+		// Else, assumes: reserved words are always at the end of program
+		// memory.
+		return (forceCalibration || device.reservedRange.isEmpty()) ? device.programRange : IntRange.getPost(
+				device.programRange.start(), device.reservedRange.start());
+	}
+
 	List<Tuple2<String, IntRange>> getAreas() {
 		List<Tuple2<String, IntRange>> ls = new ArrayList<Tuple2<String, IntRange>>();
 
@@ -1,8 +1,12 @@
 package us.hfgk.ardpicprog;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
 
 class HexFileParser {
 	// Record types
@@ -18,193 +22,693 @@ class HexFileParser {
 	
 	private static int DIGIT_COLON = 0x10;
 
-	private static void copyLineToWords(ShortList words, byte[] line, int wordAddress) {
-		int lineSizeMinus5 = line.length - 5;
-		for (int wordIndex = 0; (wordIndex << 1) < lineSizeMinus5; ++wordIndex) {
-			words.set(wordAddress + wordIndex, readLittleWord(line, (wordIndex << 1) + 4));
+	// Length, address (2), type, up to 255 data bytes, checksum
+	private static final int MAX_RECORD_BYTES = 5 + 255;
+
+	private static final int STREAM_BLOCK_SIZE = 64 * 1024;
+
+	// Inputs at least twice this size are split into chunks of at least this
+	// size and parsed in parallel.
+	private static final int PARALLEL_CHUNK_MIN = 256 * 1024;
+
+	// Marks a chunk that contains no extended address record.
+	private static final int NO_BASE_ADDRESS = -1;
+
+	private static void copyLineToWords(ShortWriter words, byte[] line, int length, int wordAddress,
+			short[] lineWords) {
+		int lineSizeMinus5 = length - 5;
+		int wordIndex;
+		for (wordIndex = 0; (wordIndex << 1) < lineSizeMinus5; ++wordIndex) {
+			lineWords[wordIndex] = readLittleWord(line, (wordIndex << 1) + 4);
 		}
+		words.setRange(wordAddress, lineWords, 0, wordIndex);
 	}
 	
+	// Digit values by character; DIGIT_COLON for ':', -1 if invalid.
+	private static final byte[] DIGIT_VALUES = new byte[256];
+
+	static {
+		for (int ch = 0; ch < DIGIT_VALUES.length; ++ch) {
+			int digit;
+			if (ch == ':') {
+				digit = DIGIT_COLON;
+			} else if (ch >= '0' && ch <= '9') {
+				digit = ch - '0';
+			} else if (ch >= 'A' && ch <= 'F') {
+				digit = ch - 'A' + 10;
+			} else if (ch >= 'a' && ch <= 'f') {
+				digit = ch - 'a' + 10;
+			} else {
+				// Invalid character in hex file.
+				digit = -1;
+			}
+			DIGIT_VALUES[ch] = (byte) digit;
+		}
+	}
+
 	private static int examineDigit(int ch) {
-		if (ch == ':') {
-			return DIGIT_COLON;
-		} else if (ch >= '0' && ch <= '9') {
-			return ch - '0';
-		} else if (ch >= 'A' && ch <= 'F') {
-			return ch - 'A' + 10;
-		} else if (ch >= 'a' && ch <= 'f') {
-			return ch - 'a' + 10;
-		} else {
-			// Invalid character in hex file.
+		return ((ch & ~0xFF) == 0) ? DIGIT_VALUES[ch] : -1;
+	}
+
+	// SWAR constants: one value repeated in each byte of a long.
+	private static final long EACH_BYTE_01 = 0x0101010101010101L;
+	private static final long EACH_BYTE_HIGH_BIT = 0x80 * EACH_BYTE_01;
+
+	// Returns the bytes of chars that hold a value in [lo, hi] as 0x80, others
+	// as 0x00. Every byte of chars must be below 0x80.
+	private static long bytesInRange(long chars, int lo, int hi) {
+		return (chars + (0x80 - lo) * EACH_BYTE_01) & ~(chars + (0x7F - hi) * EACH_BYTE_01) & EACH_BYTE_HIGH_BIT;
+	}
+
+	/**
+	 * Decodes the eight ASCII hex digits packed big-endian in {@code chars}
+	 * into four bytes, packed big-endian in the low 32 bits of the result, or
+	 * returns -1 if any of the eight characters is not a hex digit.
+	 */
+	static long decodeHexDigits(long chars) {
+		if ((chars & EACH_BYTE_HIGH_BIT) != 0)
 			return -1;
-		}
+
+		long digits = bytesInRange(chars, '0', '9');
+		// Setting 0x20 folds 'A'-'F' onto 'a'-'f' and nothing else onto them.
+		long letters = bytesInRange(chars | (0x20 * EACH_BYTE_01), 'a', 'f');
+		if ((digits | letters) != EACH_BYTE_HIGH_BIT)
+			return -1;
+
+		// The low nibble of '0'-'9' is its value; that of a letter is 9 less.
+		long nibbles = (chars & (0x0F * EACH_BYTE_01)) + (letters >>> 7) * 9;
+
+		// Combine each pair of nibbles into the low byte of a 16-bit lane.
+		long lanes = (nibbles | (nibbles >>> 4)) & 0x00FF00FF00FF00FFL;
+		return ((lanes >>> 24) & 0xFF000000L) | ((lanes >>> 16) & 0x00FF0000L) | ((lanes >>> 8) & 0x0000FF00L)
+				| (lanes & 0x000000FFL);
 	}
 
 	public static HexFile load(HexFileMetadata details, InputStream file) throws IOException {
 		if(details == null)
 			throw new IllegalArgumentException();
-		ShortList words = Common.getBlankShortList();
-		loadIntoShortList(words, file);
-		return new HexFile(details, words);
+		ShortList words = Common.getBlankShortList(details);
+		ImageFingerprint fingerprint = new ImageFingerprint(details);
+		loadIntoShortList(fingerprint.track(words), file);
+		return new HexFile(details, words, fingerprint.value());
+	}
+
+	/**
+	 * Loads a hex file from the remaining bytes of {@code buffer}, which is
+	 * typically a file mapped by {@link Common#mapForRead(String)}. Records
+	 * are decoded in place without copying the input.
+	 */
+	public static HexFile load(HexFileMetadata details, ByteBuffer buffer) throws IOException {
+		if(details == null)
+			throw new IllegalArgumentException();
+		ShortList words = Common.getBlankShortList(details);
+		ImageFingerprint fingerprint = new ImageFingerprint(details);
+		loadIntoShortList(fingerprint.track(words), buffer);
+		return new HexFile(details, words, fingerprint.value());
+	}
+
+	static ShortList loadWords(HexFileMetadata details, ByteBuffer buffer) throws HexFileException {
+		ShortList words = Common.getBlankShortList(details);
+		loadIntoShortList(words, buffer);
+		return words;
 	}
 
 	private static void loadIntoShortList(ShortList words, InputStream file) throws IOException, HexFileException {
-		boolean startLine = true;
-		ByteArrayOutputStream line = new ByteArrayOutputStream();
-		int ch, digit;
-		int nibble = -1;
+		RecordDecoder decoder = new RecordDecoder(words, 1, 0);
+		byte[] block = new byte[STREAM_BLOCK_SIZE];
+		ByteBuffer wrapped = ByteBuffer.wrap(block);
+		int n;
+
+		// Reading a block at a time lets the decoder take its fast path.
+		while ((n = file.read(block)) >= 0) {
+			if (decoder.acceptAll(wrapped, 0, n))
+				return; // ok
+		}
 
-		int baseAddress = 0;
+		throw decoder.error("Unexpected end of input");
+	}
 
-		while ((ch = file.read()) >= 0) {
+	private static void loadIntoShortList(ShortList words, ByteBuffer buffer) throws HexFileException {
+		if (buffer.remaining() >= 2 * PARALLEL_CHUNK_MIN) {
+			loadIntoShortListParallel(words, buffer);
+			return;
+		}
 
-			if (ch == ' ' || ch == '\t')
-				continue;
+		parse(words, buffer);
+	}
+
+	/**
+	 * Parses the remaining bytes of {@code buffer} sequentially, setting words
+	 * in {@code words} in the order their records appear.
+	 */
+	static void parse(ShortWriter words, ByteBuffer buffer) throws HexFileException {
+		RecordDecoder decoder = new RecordDecoder(words, 1, 0);
+		if (!decoder.acceptAll(buffer.duplicate(), buffer.position(), buffer.limit()))
+			throw decoder.error("Unexpected end of input");
+	}
+
+	/**
+	 * Decodes a hex file one character at a time, collecting each record in a
+	 * reusable buffer and tracking the line and column for error reporting.
+	 */
+	private static final class RecordDecoder {
+		private final ShortWriter words;
+		private final byte[] record = new byte[MAX_RECORD_BYTES];
+		private final short[] recordWords = new short[MAX_RECORD_BYTES / 2];
+
+		// May exceed record.length for an overlong line, which is then
+		// reported as having an incorrect size.
+		private int length = 0;
+		// Sum of the bytes in record so far, for the checksum.
+		private int sum = 0;
+		private boolean startLine = true;
+		private int nibble = -1;
+		private int baseAddress;
+
+		private int line;
+		private int column = 0;
+		private boolean afterCR = false;
+
+		RecordDecoder(ShortWriter words, int line, int baseAddress) {
+			this.words = words;
+			this.line = line;
+			this.baseAddress = baseAddress;
+		}
+
+		HexFileException error(String message) {
+			return new HexFileException(message + " (line " + line + ", column " + column + ")");
+		}
+
+		/**
+		 * Accepts the characters of {@code buffer} in [index, limit), which
+		 * must be in big-endian order. Returns true if the end of file record
+		 * was read.
+		 */
+		boolean acceptAll(ByteBuffer buffer, int index, int limit) throws HexFileException {
+			while (index < limit) {
+				index = acceptDigits(buffer, index, limit);
+				if (index < limit && accept(buffer.get(index++) & 0xFF))
+					return true;
+			}
+			return false;
+		}
+
+		// While between bytes within a record, decodes eight hex digits at a
+		// time. Stops at anything else, leaving it to accept(). Returns the
+		// index of the first character not consumed.
+		private int acceptDigits(ByteBuffer buffer, int index, int limit) {
+			if (startLine || nibble != -1)
+				return index;
+
+			while (limit - index >= 8 && length + 4 <= record.length) {
+				long bytes = decodeHexDigits(buffer.getLong(index));
+				if (bytes < 0)
+					break;
+
+				for (int shift = 24; shift >= 0; shift -= 8) {
+					int b = (int) (bytes >>> shift) & 0xFF;
+					record[length++] = (byte) b;
+					sum += b;
+				}
+				index += 8;
+				column += 8;
+				afterCR = false;
+			}
+			return index;
+		}
+
+		// Returns true once the end of file record has been read.
+		boolean accept(int ch) throws HexFileException {
+			++column;
+
+			if (ch == ' ' || ch == '\t') {
+				afterCR = false;
+				return false;
+			}
 
 			if (ch == '\r' || ch == '\n') {
 				if (nibble != -1) {
 					// Half a byte at the end of the line.
-					throw new HexFileException("Half byte at end of line");
+					throw error("Half byte at end of line");
 				}
 
 				if (!startLine) {
-					byte[] bytes = line.toByteArray();
-					validateSize(bytes);
-					validateChecksum(bytes);
+					validateSize();
+					validateChecksum();
 
-					baseAddress = readRecord(words, bytes, baseAddress);
+					baseAddress = readRecord(baseAddress);
 					if (baseAddress == READ_RECORD_OK) {
-						return; // ok
+						return true;
 					}
 				}
-				line.reset();
+				length = 0;
+				sum = 0;
 				startLine = true;
-				continue;
+
+				// "\r\n" counts as a single line break.
+				if (ch == '\r' || !afterCR)
+					++line;
+				afterCR = (ch == '\r');
+				column = 0;
+				return false;
 			}
 
-			digit = examineDigit(ch);
+			afterCR = false;
+			int digit = examineDigit(ch);
 
 			if (digit == DIGIT_COLON) {
 				if (!startLine) {
 					// ':' did not appear at the start of a line.
-					throw new HexFileException("':' must not appear after the beginning of a line");
+					throw error("':' must not appear after the beginning of a line");
 				} else {
 					startLine = false;
-					continue;
 				}
 			} else if (digit < 0) {
 				// Invalid character in hex file.
-				throw new HexFileException("Invalid hex character '" + ch + "'");
+				throw error("Invalid hex character '" + ch + "'");
 			} else {
 
 				if (startLine) {
 					// Hex digit at the start of a line.
-					throw new HexFileException("Hex digit must not appear at the beginning of a line");
+					throw error("Hex digit must not appear at the beginning of a line");
 				}
 				if (nibble == -1) {
 					nibble = digit;
 				} else {
-					line.write((byte) ((nibble << 4) | digit));
+					int b = (nibble << 4) | digit;
+					if (length < record.length)
+						record[length] = (byte) b;
+					sum += b;
+					++length;
 					nibble = -1;
 				}
 			}
+			return false;
+		}
+
+		private int readRecord(int baseAddress) throws HexFileException {
+
+			byte byte3 = record[3];
+			byte byte0 = record[0];
+
+			switch (byte3) {
+			case RECORD_DATA:
+				// Data record.
+				if ((byte0 & 0x01) != 0)
+					throw error("Line length must be even");
+
+				int address = baseAddress + readUnsignedBigWord(record, 1);
+				if ((address & 0x0001) != 0)
+					throw error("Address must be even");
+
+				copyLineToWords(words, record, length, address >> 1, recordWords); // pass word address
+				return baseAddress;
+
+			case RECORD_EOF:
+				// Stop processing at the End Of File Record.
+				if (byte0 != 0x00)
+					throw error("Invalid end of file record");
+				return READ_RECORD_OK; // fake OK
+
+			case RECORD_EXTENDED_SEGMENT_ADDRESS:
+				// Extended Segment Address Record.
+				if (byte0 != 0x02)
+					throw error("Invalid segment address record");
+				return readUnsignedBigWord(record, 4) << 4;
+
+			case RECORD_EXTENDED_LINEAR_ADDRESS:
+				// Extended Linear Address Record.
+				if (byte0 != 0x02)
+					throw error("Invalid address record");
+				return readUnsignedBigWord(record, 4) << 16;
+
+			case RECORD_START_SEGMENT_ADDRESS:
+			case RECORD_START_LINEAR_ADDRESS:
+				// do nothing
+				return baseAddress;
+
+			default:
+				// Invalid record type.
+				throw error("Invalid record type");
+			}
+		}
+
+		private void validateChecksum() throws HexFileException {
+			// This omits the last byte from the checksum.
+			int last = length - 1;
+			int checksum = sum - (record[last] & 0xFF);
+
+			checksum = (((checksum & 0xFF) ^ 0xFF) + 1) & 0xFF;
+
+			if (checksum != (record[last] & 0xFF)) {
+				// Checksum for this line is incorrect.
+				throw error("Line checksum is not correct");
+			}
 		}
 
-		throw new HexFileException("Unexpected end of input");
+		private void validateSize() throws HexFileException {
+			if (length < 5) {
+				// Not enough bytes to form a valid line.
+				throw error("Line too short");
+			}
+
+			if ((record[0] & 0xFF) != length - 5) {
+				// Size value is incorrect.
+				throw error("Line size is not correct");
+			}
+		}
 	}
-	
 
-	// Read a big-endian word value from a buffer.
-	private static short readBigWord(byte[] bytes, int index) {
-		return shortFromBytes(bytes[index], bytes[index + 1]);
+	/*
+	 * Parallel loading. The input is split into chunks at line boundaries. A
+	 * prescan pass counts the lines in each chunk and finds its last extended
+	 * address record, which gives every chunk its starting line number and
+	 * base address. The chunks are then decoded independently into logs that
+	 * are replayed into the list in file order, so later records still
+	 * overwrite earlier ones and the first error in the file is the one
+	 * reported.
+	 */
+
+	private static final class Chunk {
+		final int start;
+		final int post;
+		final boolean last;
+
+		// Prescan results
+		int lineBreaks = 0;
+		int lastBaseAddress = NO_BASE_ADDRESS;
+
+		// Decode results
+		final RecordedWords words = new RecordedWords();
+		HexFileException error = null;
+		boolean endOfFile = false;
+
+		Chunk(int start, int post, boolean last) {
+			this.start = start;
+			this.post = post;
+			this.last = last;
+		}
 	}
 
-	// Read a little-endian word value from a buffer.
-	private static short readLittleWord(byte[] bytes, int index) {
-		return shortFromBytes(bytes[index + 1], bytes[index]);
+	private static void loadIntoShortListParallel(ShortList words, ByteBuffer buffer) throws HexFileException {
+		// Duplicates are always big-endian, as acceptAll() requires.
+		buffer = buffer.duplicate();
+		final Chunk[] chunks = splitIntoChunks(buffer);
+
+		Common.getForkJoinPool().invoke(new ChunkAction(buffer, chunks, 0, chunks.length, false));
+
+		// Pass each chunk the state left by those before it.
+		int[] firstLines = new int[chunks.length];
+		int[] baseAddresses = new int[chunks.length];
+		int line = 1;
+		int baseAddress = 0;
+		for (int i = 0; i < chunks.length; ++i) {
+			firstLines[i] = line;
+			baseAddresses[i] = baseAddress;
+			line += chunks[i].lineBreaks;
+			if (chunks[i].lastBaseAddress != NO_BASE_ADDRESS)
+				baseAddress = chunks[i].lastBaseAddress;
+		}
+
+		ChunkAction decode = new ChunkAction(buffer, chunks, 0, chunks.length, true);
+		decode.firstLines = firstLines;
+		decode.baseAddresses = baseAddresses;
+		Common.getForkJoinPool().invoke(decode);
+
+		for (Chunk chunk : chunks) {
+			chunk.words.replayInto(words);
+			if (chunk.error != null)
+				throw chunk.error;
+			if (chunk.endOfFile)
+				return;
+		}
 	}
-	
 
-	private static int readRecord(ShortList words, byte[] line, int baseAddress) throws HexFileException {
+	private static Chunk[] splitIntoChunks(ByteBuffer buffer) {
+		int start = buffer.position();
+		final int limit = buffer.limit();
+		int chunkSize = (limit - start) / (4 * Runtime.getRuntime().availableProcessors());
+		if (chunkSize < PARALLEL_CHUNK_MIN)
+			chunkSize = PARALLEL_CHUNK_MIN;
+
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		while (start < limit) {
+			int post = findChunkPost(buffer, start + chunkSize, limit);
+			chunks.add(new Chunk(start, post, post == limit));
+			start = post;
+		}
+		return chunks.toArray(new Chunk[chunks.size()]);
+	}
 
-		byte byte3 = line[3];
-		byte byte0 = line[0];
+	// Finds the first line boundary at or after index. A "\r\n" pair is never
+	// split.
+	private static int findChunkPost(ByteBuffer buffer, int index, int limit) {
+		for (; index < limit; ++index) {
+			byte previous = buffer.get(index - 1);
+			if (previous == '\n' || (previous == '\r' && buffer.get(index) != '\n'))
+				return index;
+		}
+		return limit;
+	}
 
-		switch (byte3) {
-		case RECORD_DATA:
-			// Data record.
-			if ((byte0 & 0x01) != 0)
-				throw new HexFileException("Line length must be even");
+	private static final class ChunkAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
-			int address = baseAddress + readBigWord(line, 1);
-			if ((address & 0x0001) != 0)
-				throw new HexFileException("Address must be even");
+		private final ByteBuffer buffer;
+		private final Chunk[] chunks;
+		private final int from;
+		private final int to;
+		private final boolean decode;
 
-			copyLineToWords(words, line, address >> 1); // pass word address
-			return baseAddress;
+		int[] firstLines;
+		int[] baseAddresses;
 
-		case RECORD_EOF:
-			// Stop processing at the End Of File Record.
-			if (byte0 != 0x00)
-				throw new HexFileException("Invalid end of file record");
-			return READ_RECORD_OK; // fake OK
+		ChunkAction(ByteBuffer buffer, Chunk[] chunks, int from, int to, boolean decode) {
+			this.buffer = buffer;
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+			this.decode = decode;
+		}
 
-		case RECORD_EXTENDED_SEGMENT_ADDRESS:
-			// Extended Segment Address Record.
-			if (byte0 != 0x02)
-				throw new HexFileException("Invalid segment address record");
-			return (readBigWord(line, 4)) << 4;
+		private ChunkAction sub(int subFrom, int subTo) {
+			ChunkAction action = new ChunkAction(buffer, chunks, subFrom, subTo, decode);
+			action.firstLines = firstLines;
+			action.baseAddresses = baseAddresses;
+			return action;
+		}
 
-		case RECORD_EXTENDED_LINEAR_ADDRESS:
-			// Extended Linear Address Record.
-			if (byte0 != 0x02)
-				throw new HexFileException("Invalid address record");
-			return (readBigWord(line, 4)) << 16;
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(sub(from, mid), sub(mid, to));
+			} else if (decode) {
+				decodeChunk(buffer, chunks[from], firstLines[from], baseAddresses[from]);
+			} else {
+				prescanChunk(buffer, chunks[from]);
+			}
+		}
+	}
 
-		case RECORD_START_SEGMENT_ADDRESS:
-		case RECORD_START_LINEAR_ADDRESS:
-			// do nothing
-			return baseAddress;
+	private static void decodeChunk(ByteBuffer buffer, Chunk chunk, int firstLine, int baseAddress) {
+		RecordDecoder decoder = new RecordDecoder(chunk.words, firstLine, baseAddress);
+		try {
+			if (decoder.acceptAll(buffer, chunk.start, chunk.post)) {
+				chunk.endOfFile = true;
+				return;
+			}
+			if (chunk.last)
+				throw decoder.error("Unexpected end of input");
+		} catch (HexFileException e) {
+			chunk.error = e;
+		}
+	}
 
-		default:
-			// Invalid record type.
-			throw new HexFileException("Invalid record type");
+	// Counts line breaks the same way RecordDecoder does, and decodes any
+	// extended address records found by peeking at each record type.
+	private static void prescanChunk(ByteBuffer buffer, Chunk chunk) {
+		int lineStart = chunk.start;
+		boolean afterCR = false;
+		for (int i = chunk.start; i < chunk.post; ++i) {
+			byte ch = buffer.get(i);
+			if (ch == '\r' || ch == '\n') {
+				if (ch == '\r' || !afterCR) {
+					++chunk.lineBreaks;
+					if (isExtendedAddressRecord(peekRecordHeader(buffer, lineStart, i))) {
+						int baseAddress = decodeBaseAddress(buffer, lineStart, i);
+						if (baseAddress != NO_BASE_ADDRESS)
+							chunk.lastBaseAddress = baseAddress;
+					}
+				}
+				afterCR = (ch == '\r');
+				lineStart = i + 1;
+			} else {
+				afterCR = false;
+			}
 		}
 	}
-	
 
-	private static short shortFromBytes(byte high, byte low) {
-		return (short) (((high & 0xFF) << 8) | (low & 0xFF));
+	private static boolean isExtendedAddressRecord(long header) {
+		if (header < 0)
+			return false;
+		int type = (int) header & 0xFF;
+		return type == RECORD_EXTENDED_SEGMENT_ADDRESS || type == RECORD_EXTENDED_LINEAR_ADDRESS;
+	}
+
+	// Reads the length, address, and type bytes at the start of the line in
+	// [start, post) without validating the rest of it. Returns them packed
+	// into the low 32 bits, or -1 if the line does not start like a record.
+	private static long peekRecordHeader(ByteBuffer buffer, int start, int post) {
+		int i = start;
+		while (i < post && isBlank(buffer.get(i)))
+			++i;
+		if (i >= post || buffer.get(i) != ':')
+			return -1;
+		++i;
+
+		int digits = 0;
+		long header = 0;
+		for (; i < post && digits < 8; ++i) {
+			byte ch = buffer.get(i);
+			if (isBlank(ch))
+				continue;
+			int digit = examineDigit(ch);
+			if (digit < 0 || digit == DIGIT_COLON)
+				return -1;
+			header = (header << 4) | digit;
+			++digits;
+		}
+		return (digits == 8) ? header : -1;
 	}
 
-	private static void validateChecksum(byte[] line) throws HexFileException {
-		int checksum;
-		checksum = 0;
+	/**
+	 * Scans the record headers in the remaining bytes of {@code buffer} and
+	 * returns true if every data record up to the end of file record starts at
+	 * or after the end of the one before it, so that no word is set twice and
+	 * words arrive in ascending address order. Returns false if a record
+	 * header cannot be read, leaving the full parser to report the problem.
+	 */
+	static boolean hasAscendingRecords(ByteBuffer buffer) {
+		final int limit = buffer.limit();
+		int baseAddress = 0;
+		int previousPost = Integer.MIN_VALUE;
+		int lineStart = buffer.position();
+
+		for (int i = lineStart; i < limit; ++i) {
+			byte ch = buffer.get(i);
+			if (ch != '\r' && ch != '\n')
+				continue;
+
+			if (i > lineStart) {
+				long header = peekRecordHeader(buffer, lineStart, i);
+				if (header >= 0) {
+					int type = (int) header & 0xFF;
+					if (type == RECORD_DATA) {
+						int length = (int) (header >> 24) & 0xFF;
+						int address = baseAddress + ((int) (header >> 8) & 0xFFFF);
+						if ((length & 0x01) != 0 || (address & 0x0001) != 0)
+							return false;
+						int wordStart = address >> 1;
+						if (wordStart < previousPost)
+							return false;
+						previousPost = wordStart + (length >> 1);
+					} else if (type == RECORD_EOF) {
+						return true;
+					} else if (isExtendedAddressRecord(header)) {
+						baseAddress = decodeBaseAddress(buffer, lineStart, i);
+						if (baseAddress == NO_BASE_ADDRESS)
+							return false;
+					}
+				} else if (!isBlankLine(buffer, lineStart, i)) {
+					return false;
+				}
+			}
+			lineStart = i + 1;
+		}
+		return true;
+	}
 
-		// This omits the last byte from the checksum.
-		byte previous = (byte) 0;
-		for (byte b : line) {
-			checksum += (previous & 0xFF);
-			previous = b;
+	private static boolean isBlankLine(ByteBuffer buffer, int start, int post) {
+		for (int i = start; i < post; ++i) {
+			if (!isBlank(buffer.get(i)))
+				return false;
 		}
+		return true;
+	}
 
-		checksum = (((checksum & 0xFF) ^ 0xFF) + 1) & 0xFF;
+	private static boolean isBlank(byte ch) {
+		return ch == ' ' || ch == '\t';
+	}
 
-		if (checksum != (line[line.length - 1] & 0xFF)) {
-			// Checksum for this line is incorrect.
-			throw new HexFileException("Line checksum is not correct");
+	// Decodes a single line with a fresh decoder. Errors are ignored here
+	// because decoding the chunk will report them.
+	private static int decodeBaseAddress(ByteBuffer buffer, int start, int terminator) {
+		RecordDecoder decoder = new RecordDecoder(null, 1, 0);
+		try {
+			for (int i = start; i <= terminator; ++i)
+				decoder.accept(buffer.get(i) & 0xFF);
+		} catch (HexFileException e) {
+			return NO_BASE_ADDRESS;
 		}
+		return decoder.baseAddress;
 	}
 
-	private static void validateSize(byte[] line) throws HexFileException {
-		if (line.length < 5) {
-			// Not enough bytes to form a valid line.
-			throw new HexFileException("Line too short");
+	/**
+	 * Records setRange() calls as runs of consecutive indices so that they can
+	 * be replayed into another list later, in the same order.
+	 */
+	private static final class RecordedWords implements ShortWriter {
+		private int[] runStarts = new int[16];
+		private int[] runLengths = new int[16];
+		private int runCount = 0;
+		private short[] values = new short[256];
+		private int valueCount = 0;
+
+		@Override
+		public void setRange(int index, short[] source, int offset, int length) {
+			extendRun(index, length);
+			System.arraycopy(source, offset, values, valueCount, length);
+			valueCount += length;
 		}
 
-		if ((line[0] & 0xFF) != line.length - 5) {
-			// Size value is incorrect.
-			throw new HexFileException("Line size is not correct");
+		// Makes room for length more values at index, continuing the last run
+		// if index follows on from it.
+		private void extendRun(int index, int length) {
+			if (runCount == 0 || runStarts[runCount - 1] + runLengths[runCount - 1] != index) {
+				if (runCount == runStarts.length) {
+					runStarts = Arrays.copyOf(runStarts, runCount * 2);
+					runLengths = Arrays.copyOf(runLengths, runCount * 2);
+				}
+				runStarts[runCount] = index;
+				runLengths[runCount] = 0;
+				++runCount;
+			}
+			if (valueCount + length > values.length)
+				values = Arrays.copyOf(values, Math.max(valueCount + length, values.length * 2));
+			runLengths[runCount - 1] += length;
+		}
+
+		void replayInto(ShortWriter words) {
+			int v = 0;
+			for (int r = 0; r < runCount; ++r) {
+				words.setRange(runStarts[r], values, v, runLengths[r]);
+				v += runLengths[r];
+			}
 		}
 	}
+
+	// Read a big-endian word value, such as an address, from a buffer.
+	private static int readUnsignedBigWord(byte[] bytes, int index) {
+		return shortFromBytes(bytes[index], bytes[index + 1]) & 0xFFFF;
+	}
+
+	// Read a little-endian word value from a buffer.
+	private static short readLittleWord(byte[] bytes, int index) {
+		return shortFromBytes(bytes[index + 1], bytes[index]);
+	}
+
+	private static short shortFromBytes(byte high, byte low) {
+		return (short) (((high & 0xFF) << 8) | (low & 0xFF));
+	}
 }
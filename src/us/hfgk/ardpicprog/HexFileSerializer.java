@@ -1,151 +1,442 @@
 package us.hfgk.ardpicprog;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 class HexFileSerializer {
+	private static final Logger log = Logger.getLogger(HexFileSerializer.class.getName());
 
-	private static int calculateChecksum(byte[] buffer, int len) {
-		int index;
-		int checksum = 0;
-		for (index = 0; index < len; ++index)
-			checksum += (buffer[index] & 0xFF);
-		checksum = (((checksum & 0xFF) ^ 0xFF) + 1) & 0xFF;
-		return checksum;
-	}
+	private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D',
+			'E', 'F' };
+
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	// Images with fewer words than this are encoded on the calling thread.
+	private static final int PARALLEL_MIN_WORDS = 64 * 1024;
+
+	// Words encoded by one parallel task, before rounding down to a multiple
+	// of the words per record so that chunks of a run split at record
+	// boundaries.
+	private static final int CHUNK_WORDS = 32 * 1024;
+
+	// Words fetched from the image at a time.
+	private static final int WINDOW_WORDS = 4096;
+
+	// Longest possible line: ':', 255 data bytes plus 5 others as hex, newline.
+	private static final int MAX_LINE_LENGTH = 1 + (255 + 5) * 2 + 1;
+
+	/**
+	 * Encodes runs of words as records, a word at a time, into a reusable
+	 * buffer that is passed to the output stream only when it is nearly full.
+	 * Writing a record allocates nothing.
+	 */
+	private static final class RecordWriter {
+		private final OutputStream file;
+		private final byte[] output = new byte[OUTPUT_BUFFER_SIZE];
+		private int outputLength = 0;
+
+		private final int rawFormat;
+		private final boolean needsSegments;
+		private final int recordBytes;
+
+		// Record being built: length, address, type, data.
+		private final byte[] record = new byte[4 + 255];
+		private int recordLength = 4;
+		private int recordStart;
+		private int currentSegment = ~0;
+		private final byte[] addressRecord = new byte[6];
+
+		// Words of the image around the record being built.
+		final WordWindow window = new WordWindow(WINDOW_WORDS);
+
+		RecordWriter(OutputStream file, HexFileMetadata metadata) {
+			this.file = file;
+
+			DeviceDetails device = metadata.getDevice();
+			rawFormat = metadata.getFormat();
+			int format = (rawFormat == HexFile.FORMAT_AUTO && device.programBits == 16) ? HexFile.FORMAT_IHX32
+					: rawFormat;
+			needsSegments = format != HexFile.FORMAT_IHX8M
+					&& (rangeIsNotShort(device.programRange) || rangeIsNotShort(device.configRange) || rangeIsNotShort(device.dataRange));
+			recordBytes = metadata.getRecordBytes();
+		}
+
+		/**
+		 * Starts a run of words at {@code address}, assuming that the
+		 * extended address last written is {@code currentSegment}; ~0 forces
+		 * one to be written.
+		 */
+		void startRun(int address, int currentSegment) {
+			this.recordStart = address;
+			this.recordLength = 4;
+			this.currentSegment = currentSegment;
+		}
+
+		/**
+		 * Adds the next word of the current run, writing a record whenever
+		 * one fills up.
+		 */
+		void add(short value) throws IOException {
+			record[recordLength++] = (byte) value;
+			record[recordLength++] = (byte) (value >> 8);
+			if (recordLength - 4 >= recordBytes)
+				writeDataRecord();
+		}
+
+		/**
+		 * Writes any partial record left at the end of the current run.
+		 */
+		void endRun() throws IOException {
+			if (recordLength > 4)
+				writeDataRecord();
+		}
 
-	private static int determineOutputExtendedAddress(HexFile hex, OutputStream file, int currentSegment,
-			boolean needsSegments, byte[] buffer, int segment) throws IOException {
-		if (needsSegments && segment != currentSegment) {
-			if (segment < 16 && hex.getMetadata().getFormat() != HexFile.FORMAT_IHX32) {
-				// Over 64K boundary: output an Extended Segment Address
-				// Record.
-				currentSegment = outputExtendedAddress(hex, file, buffer, segment, (byte) 0x02, 12);
-			} else {
-				// Over 1M boundary: output an Extended Linear Address
-				// Record.
-				currentSegment = outputExtendedAddress(hex, file, buffer, segment, (byte) 0x04, 0);
+		private void writeDataRecord() throws IOException {
+			int byteAddress = recordStart * 2;
+			determineOutputExtendedAddress(byteAddress >> 16);
+
+			int dataBytes = recordLength - 4;
+			record[0] = (byte) dataBytes;
+			record[1] = (byte) (byteAddress >> 8);
+			record[2] = (byte) byteAddress;
+			record[3] = (byte) 0x00;
+			writeLine(record, recordLength);
+
+			recordStart += dataBytes / 2;
+			recordLength = 4;
+		}
+
+		private void determineOutputExtendedAddress(int segment) throws IOException {
+			if (needsSegments && segment != currentSegment) {
+				if (segment < 16 && rawFormat != HexFile.FORMAT_IHX32) {
+					// Over 64K boundary: output an Extended Segment Address
+					// Record.
+					outputExtendedAddress(segment, (byte) 0x02, 12);
+				} else {
+					// Over 1M boundary: output an Extended Linear Address
+					// Record.
+					outputExtendedAddress(segment, (byte) 0x04, 0);
+				}
 			}
 		}
-		return currentSegment;
-	}
 
-	private static int outputExtendedAddress(HexFile hex, OutputStream file, byte[] buffer, int segment, byte b3,
-			int shift) throws IOException {
-		int currentSegment = segment;
-		segment <<= shift;
-		buffer[0] = (byte) 0x02;
-		buffer[1] = (byte) 0x00;
-		buffer[2] = (byte) 0x00;
-		buffer[3] = b3;
-		buffer[4] = (byte) (segment >> 8);
-		buffer[5] = (byte) segment;
-		writeLine(file, buffer, 6);
-		return currentSegment;
-	}
+		private void outputExtendedAddress(int segment, byte b3, int shift) throws IOException {
+			currentSegment = segment;
+			segment <<= shift;
+			byte[] buffer = addressRecord;
+			buffer[0] = (byte) 0x02;
+			buffer[1] = (byte) 0x00;
+			buffer[2] = (byte) 0x00;
+			buffer[3] = b3;
+			buffer[4] = (byte) (segment >> 8);
+			buffer[5] = (byte) segment;
+			writeLine(buffer, 6);
+		}
 
-	private static void putByteAsHex(OutputStream file, int z) throws IOException {
-		writeString(file, Common.toX2(z));
-	}
+		void writeEOFRecord() throws IOException {
+			byte[] buffer = addressRecord;
+			buffer[0] = (byte) 0x00;
+			buffer[1] = (byte) 0x00;
+			buffer[2] = (byte) 0x00;
+			buffer[3] = (byte) 0x01;
+			writeLine(buffer, 4);
+		}
+
+		private void writeLine(byte[] buffer, int len) throws IOException {
+			if (outputLength + MAX_LINE_LENGTH > output.length)
+				flush();
 
-	private static void putBytesAsHex(OutputStream file, byte[] buffer, int len) throws IOException {
-		writeString(file, Common.toX2(buffer, 0, len));
+			byte[] out = output;
+			int pos = outputLength;
+			int checksum = 0;
+
+			out[pos++] = ':';
+			for (int index = 0; index < len; ++index) {
+				int b = buffer[index] & 0xFF;
+				checksum += b;
+				out[pos++] = HEX_DIGITS[b >> 4];
+				out[pos++] = HEX_DIGITS[b & 0xF];
+			}
+			checksum = (((checksum & 0xFF) ^ 0xFF) + 1) & 0xFF;
+			out[pos++] = HEX_DIGITS[checksum >> 4];
+			out[pos++] = HEX_DIGITS[checksum & 0xF];
+			out[pos++] = '\n';
+
+			outputLength = pos;
+		}
+
+		void flush() throws IOException {
+			if (outputLength > 0) {
+				file.write(output, 0, outputLength);
+				outputLength = 0;
+			}
+		}
 	}
 
 	private static boolean rangeIsNotShort(IntRange range) {
 		return 0x10000 < range.post();
 	}
 
+	// The areas written by save(), in order.
+	private static List<Tuple2<String, IntRange>> areasToSave(DeviceDetails device) {
+		List<Tuple2<String, IntRange>> areas = new ArrayList<Tuple2<String, IntRange>>();
+		areas.add(new Tuple2<String, IntRange>("program memory", device.programRange));
+		areas.add(new Tuple2<String, IntRange>("id words and fuses", device.configRange));
+		areas.add(new Tuple2<String, IntRange>("data memory", device.dataRange));
+		return areas;
+	}
+
+	// The parts of area written by save().
+	private static IntRangeSet savedWithin(HexFileMetadata metadata, IntRange area) {
+		IntRangeSet ranges = IntRangeSet.of(area);
+		// Don't bother saving the device ID word.
+		int idAddress = metadata.deviceIdAddress();
+		if (idAddress >= 0)
+			ranges = ranges.subtract(IntRange.getSize(idAddress, 1));
+		return ranges;
+	}
+
 	public static void save(HexFile hex, OutputStream file, boolean skipOnes) throws IOException {
-		DeviceDetails device = hex.getMetadata().getDevice();
-		saveRange(hex, file, device.programRange, skipOnes);
-		if (!device.configRange.isEmpty()) {
-			if ((device.configRange.size()) >= 8) {
-				saveRange(hex, file, IntRange.getSize(device.configRange.start(), 6), skipOnes);
-				// Don't bother saving the device ID word at _configRange.start
-				// + 6.
-				saveRange(hex, file, IntRange.getPost(device.configRange.start() + 7, device.configRange.post()),
-						skipOnes);
-			} else {
-				saveRange(hex, file, device.configRange, skipOnes);
-			}
+		// Each area's runs are kept apart, so that a run never joins one in
+		// the next area and records never span areas.
+		List<IntRangeSet> runs = new ArrayList<IntRangeSet>();
+		WordWindow window = new WordWindow(WINDOW_WORDS);
+		for (Tuple2<String, IntRange> area : areasToSave(hex.getMetadata().getDevice())) {
+			IntRangeSet.Builder areaRuns = new IntRangeSet.Builder();
+			IntRangeSet ranges = savedWithin(hex.getMetadata(), area._2);
+			for (int i = 0; i < ranges.size(); ++i)
+				collectRuns(hex, window, areaRuns, ranges.start(i), ranges.post(i), skipOnes);
+			runs.add(areaRuns.build());
 		}
-		saveRange(hex, file, device.dataRange, skipOnes);
-		writeEOFRecord(file);
+		saveRuns(hex, file, runs);
 	}
 
 	public static void saveCC(HexFile hex, OutputStream file, boolean skipOnes) throws IOException {
-		for (IntRange extent : hex.extents()) {
-			saveRange(hex, file, extent, skipOnes);
-		}
-		writeEOFRecord(file);
+		IntRangeSet.Builder runs = new IntRangeSet.Builder();
+		WordWindow window = new WordWindow(WINDOW_WORDS);
+		IntRangeSet extents = hex.extents();
+		for (int i = 0; i < extents.size(); ++i)
+			collectRuns(hex, window, runs, extents.start(i), extents.post(i), skipOnes);
+		saveRuns(hex, file, Collections.singletonList(runs.build()));
 	}
 
-	private static void saveRange(HexFile hex, OutputStream file, IntRange range) throws IOException {
-		int current = range.start();
-		int currentSegment = ~0;
-		DeviceDetails device = hex.getMetadata().getDevice();
-		boolean needsSegments = (rangeIsNotShort(device.programRange) || rangeIsNotShort(device.configRange) || rangeIsNotShort(device.dataRange));
-		int formatz = hex.getMetadata().getFormat();
-		int format = (formatz == HexFile.FORMAT_AUTO && device.programBits == 16) ? HexFile.FORMAT_IHX32 : formatz;
-		if (format == HexFile.FORMAT_IHX8M)
-			needsSegments = false;
-		byte[] buffer = new byte[64];
-
-		while (current < range.post()) {
-			int byteAddress = current * 2;
-			int segment = byteAddress >> 16;
-			currentSegment = determineOutputExtendedAddress(hex, file, currentSegment, needsSegments, buffer, segment);
-
-			buffer[0] = ((current + 7) < range.post()) ? (byte) 0x10 : (byte) ((range.post() - current) * 2);
-			buffer[1] = (byte) (byteAddress >> 8);
-			buffer[2] = (byte) byteAddress;
-			buffer[3] = (byte) 0x00;
-			int len = 4;
-			while (current < range.post() && len < (4 + 16)) {
-				short value = hex.word(current);
-				buffer[len++] = (byte) value;
-				buffer[len++] = (byte) (value >> 8);
-				++current;
+	/**
+	 * Writes the same text as {@link #save(HexFile, OutputStream, boolean)}
+	 * would for an image read from {@code source}, without keeping the
+	 * image. Words are read and encoded a window at a time, and each
+	 * window's records are passed on to {@code file} before the next is read.
+	 * 
+	 * @return the {@link ImageFingerprint} of the words read
+	 */
+	public static long saveFrom(HexFileMetadata metadata, ShortSource source, OutputStream file, boolean skipOnes)
+			throws IOException {
+		RecordWriter writer = new RecordWriter(file, metadata);
+		ImageFingerprint fingerprint = new ImageFingerprint(metadata);
+		for (Tuple2<String, IntRange> area : areasToSave(metadata.getDevice())) {
+			if (area._2.isEmpty()) {
+				log.info("Skipped reading " + area._1 + ",");
+				continue;
 			}
-			writeLine(file, buffer, len);
+			log.info("Reading " + area._1 + ",");
+
+			for (IntRange range : savedWithin(metadata, area._2))
+				saveRangeFrom(metadata, source, file, writer, fingerprint, range, skipOnes);
 		}
+
+		writer.writeEOFRecord();
+		writer.flush();
+		log.info("done.");
+		return fingerprint.value();
 	}
 
-	private static void saveRange(HexFile hex, OutputStream file, IntRange range, boolean skipOnes) throws IOException {
-		int current = range.start();
-		final int post = range.post();
-		if (skipOnes) {
-			while (current < post) {
-				while (current < post && hex.isAllOnes(current))
-					++current;
-				if (current >= post)
-					break;
-				int limit = current + 1;
-				while (limit < post && !hex.isAllOnes(limit))
-					++limit;
-				saveRange(hex, file, IntRange.getPost(current, limit));
-				current = limit;
+	private static void saveRangeFrom(HexFileMetadata metadata, ShortSource source, OutputStream file,
+			RecordWriter writer, ImageFingerprint fingerprint, IntRange range, boolean skipOnes) throws IOException {
+		WordWindow window = writer.window;
+		short[] words = window.words;
+		short[] blanks = window.blanks;
+
+		boolean inRun = false;
+		if (!skipOnes) {
+			writer.startRun(range.start(), ~0);
+			inRun = true;
+		}
+
+		for (int start = range.start(); start < range.post(); start += window.capacity()) {
+			IntRange chunk = IntRange.getPost(start, start + Math.min(window.capacity(), range.post() - start));
+			source.readTo(chunk, words, 0);
+			metadata.fillFullWords(chunk, blanks, 0);
+			fingerprint.add(chunk.start(), words, 0, chunk.size());
+
+			for (int i = 0; i < chunk.size(); ++i) {
+				if (skipOnes && words[i] == blanks[i]) {
+					if (inRun) {
+						writer.endRun();
+						inRun = false;
+					}
+				} else {
+					if (!inRun) {
+						writer.startRun(chunk.start() + i, ~0);
+						inRun = true;
+					}
+					writer.add(words[i]);
+				}
 			}
+
+			writer.flush();
+			file.flush();
+		}
+
+		if (inRun)
+			writer.endRun();
+	}
+
+	private static void saveRuns(HexFile hex, OutputStream file, List<IntRangeSet> runs) throws IOException {
+		long words = 0;
+		for (IntRangeSet set : runs)
+			words += set.wordCount();
+
+		if (words >= PARALLEL_MIN_WORDS && Runtime.getRuntime().availableProcessors() > 1) {
+			saveRunsParallel(hex, file, runs);
 		} else {
-			saveRange(hex, file, IntRange.getPost(current, post));
+			RecordWriter writer = new RecordWriter(file, hex.getMetadata());
+			for (IntRangeSet set : runs) {
+				for (int i = 0; i < set.size(); ++i)
+					saveRange(hex, writer, set.start(i), set.post(i), ~0);
+			}
+			writer.writeEOFRecord();
+			writer.flush();
 		}
 	}
 
-	private static void writeEOFRecord(OutputStream file) throws IOException {
-		writeString(file, ":00000001FF\n");
+	/**
+	 * Encodes chunks of the runs on the shared pool and writes their text in
+	 * order. Each run restarts its extended address records exactly as it
+	 * would serially. A chunk that continues a run begins at a record
+	 * boundary and assumes the segment of the record before it, so the
+	 * output is the same as from a single thread.
+	 */
+	private static void saveRunsParallel(final HexFile hex, OutputStream file, List<IntRangeSet> runs)
+			throws IOException {
+		int window = 4 * Runtime.getRuntime().availableProcessors();
+		final int recordWords = hex.getMetadata().getRecordBytes() / 2;
+		final int chunkWords = CHUNK_WORDS - (CHUNK_WORDS % recordWords);
+		ArrayDeque<Future<ByteArrayOutputStream>> pending = new ArrayDeque<Future<ByteArrayOutputStream>>();
+
+		try {
+			for (IntRangeSet set : runs) {
+				for (int r = 0; r < set.size(); ++r) {
+					int runStart = set.start(r);
+					int runPost = set.post(r);
+					for (int start = runStart; start < runPost; start += chunkWords) {
+						final int chunkStart = start;
+						final int chunkPost = start + Math.min(chunkWords, runPost - start);
+						final int currentSegment = (start == runStart) ? ~0 : ((start - recordWords) * 2) >> 16;
+
+						pending.add(Common.getForkJoinPool().submit(new Callable<ByteArrayOutputStream>() {
+							@Override
+							public ByteArrayOutputStream call() throws IOException {
+								// Each record adds 12 characters to its data as hex.
+								int records = (chunkPost - chunkStart) / recordWords + 1;
+								ByteArrayOutputStream text = new ByteArrayOutputStream(records * (recordWords * 4 + 12));
+								RecordWriter writer = new RecordWriter(text, hex.getMetadata());
+								saveRange(hex, writer, chunkStart, chunkPost, currentSegment);
+								writer.flush();
+								return text;
+							}
+						}));
+
+						if (pending.size() >= window)
+							awaitText(pending.remove()).writeTo(file);
+					}
+				}
+			}
+
+			while (!pending.isEmpty())
+				awaitText(pending.remove()).writeTo(file);
+		} finally {
+			for (Future<ByteArrayOutputStream> task : pending)
+				task.cancel(false);
+		}
+
+		RecordWriter writer = new RecordWriter(file, hex.getMetadata());
+		writer.writeEOFRecord();
+		writer.flush();
+	}
+
+	private static ByteArrayOutputStream awaitText(Future<ByteArrayOutputStream> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while saving", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
 	}
 
-	private static void writeLine(OutputStream file, byte[] buffer, int len) throws IOException {
-		int checksum = calculateChecksum(buffer, len);
-		writeString(file, ":");
-		putBytesAsHex(file, buffer, len);
-		putByteAsHex(file, checksum);
-		writeString(file, "\n");
+	private static void saveRange(HexFile hex, RecordWriter writer, int start, int post, int currentSegment)
+			throws IOException {
+		WordWindow window = writer.window;
+		writer.startRun(start, currentSegment);
+
+		int current = start;
+		while (current < post) {
+			window.load(hex.getMetadata(), hex.getWords(), IntRange.getPost(current, post));
+			short[] words = window.words;
+			int size = window.post() - current;
+			for (int i = 0; i < size; ++i)
+				writer.add(words[i]);
+			current = window.post();
+		}
+
+		writer.endRun();
 	}
 
-	private static void writeString(OutputStream s, String data) throws IOException {
-		s.write(Common.getBytes(data));
+	// Adds the runs within [start, post) to runs, which must not yet hold any
+	// at or after start.
+	private static void collectRuns(HexFile hex, WordWindow window, IntRangeSet.Builder runs, int start,
+			int post, boolean skipOnes) throws IOException {
+		int current = start;
+		if (skipOnes) {
+			// Start of the run of words that are not all ones, or -1.
+			int runStart = -1;
+			while (current < post) {
+				window.load(hex.getMetadata(), hex.getWords(), IntRange.getPost(current, post));
+				short[] words = window.words;
+				short[] blanks = window.blanks;
+				int size = window.post() - current;
+				for (int i = 0; i < size; ++i) {
+					boolean allOnes = words[i] == blanks[i];
+					if (!allOnes && runStart < 0) {
+						runStart = current + i;
+					} else if (allOnes && runStart >= 0) {
+						runs.add(runStart, current + i);
+						runStart = -1;
+					}
+				}
+				current = window.post();
+			}
+			if (runStart >= 0)
+				runs.add(runStart, post);
+		} else {
+			runs.add(current, post);
+		}
 	}
 
 }
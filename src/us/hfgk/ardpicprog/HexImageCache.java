@@ -0,0 +1,277 @@
+package us.hfgk.ardpicprog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Directory of parsed hex images in a compact binary form, so that a file
+ * that has not changed since it was last loaded is mapped instead of parsed.
+ * Loaded images are {@link DirectShortList} views of their mapped entries, so
+ * their words stay off the Java heap: a hit serves the entry's words in
+ * place, and a miss writes the parsed words into a new mapped entry and then
+ * serves those.
+ * 
+ * Each entry is named after the canonical path of its source and records the
+ * source's size, modification time, and content hash, the time the entry was
+ * written, and the image's {@link ImageFingerprint} with the tag of the
+ * metadata it was computed under, followed by its extents and raw words. The
+ * fingerprint is computed as the words are written, so a hit under the same
+ * metadata needs no pass over the words to know it. An entry whose size and
+ * modification time still match is used without reading the source, unless
+ * the source was modified so shortly before the entry was written that a
+ * later rewrite could have kept the same time. In that case, or if the time
+ * no longer matches, the entry is used only if the content hash still does,
+ * and otherwise it is rebuilt. Entries are evicted least recently used first
+ * when the directory exceeds its size cap.
+ */
+class HexImageCache {
+	private static final Logger log = Logger.getLogger(HexImageCache.class.getName());
+
+	static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final int MAGIC = 0x41504843; // "APHC"
+	private static final int VERSION = 3;
+
+	// Offset of the fingerprint, which is filled in after the words.
+	private static final int FINGERPRINT_OFFSET = 48;
+	private static final String SUFFIX = ".img";
+
+	// A source modified less than this long before its entry was written
+	// could be rewritten within the same timestamp, so it is always hashed.
+	private static final long RACY_MILLIS = 2000;
+
+	private final File directory;
+	private final long maxBytes;
+
+	HexImageCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	HexFile load(HexFileMetadata metadata, String input) throws IOException {
+		File source = new File(input).getCanonicalFile();
+		File entry = new File(directory, entryName(source.getPath()));
+
+		HexFile hexFile = null;
+		if (entry.isFile()) {
+			try {
+				hexFile = readEntry(metadata, entry, source);
+			} catch (IOException e) {
+				log.warning("Ignoring unreadable cache entry " + entry + ": " + e.getMessage());
+			}
+		}
+
+		if (hexFile != null) {
+			log.fine("Loaded " + input + " from cache");
+			// The modification time doubles as the last access time.
+			entry.setLastModified(System.currentTimeMillis());
+			return hexFile;
+		}
+
+		ByteBuffer content = Common.mapForRead(source.getPath());
+		ShortList parsed = HexFileParser.loadWords(metadata, content.duplicate());
+		try {
+			HexFile cached = writeEntry(metadata, entry, source, contentHash(content), parsed);
+			evict(entry);
+			// The parsed words can now be collected.
+			return cached;
+		} catch (IOException e) {
+			log.warning("Could not cache " + input + ": " + e.getMessage());
+		}
+		return new HexFile(metadata, parsed);
+	}
+
+	// Returns the cached image, or null if the entry is stale.
+	private HexFile readEntry(HexFileMetadata metadata, File entry, File source) throws IOException {
+		MappedByteBuffer buffer = Common.mapForRead(entry.getPath());
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return null;
+			long size = buffer.getLong();
+			long modified = buffer.getLong();
+			long written = buffer.getLong();
+			long hash = buffer.getLong();
+			long tag = buffer.getLong();
+			long fingerprint = buffer.getLong();
+			byte[] path = new byte[checkLength(buffer.getInt(), buffer.remaining())];
+			buffer.get(path);
+
+			if (!source.getPath().equals(new String(path, Common.UTF8)))
+				return null;
+			if (size != source.length())
+				return null;
+			boolean unchanged = (modified == source.lastModified() && written - modified >= RACY_MILLIS);
+			if (!unchanged && hash != contentHash(Common.mapForRead(source.getPath())))
+				return null;
+
+			int count = checkLength(buffer.getInt(), buffer.remaining() / 8);
+			int[] starts = new int[count];
+			int[] lengths = new int[count];
+			long wordCount = 0;
+			for (int i = 0; i < count; ++i) {
+				starts[i] = buffer.getInt();
+				lengths[i] = buffer.getInt();
+				wordCount += checkLength(lengths[i], Integer.MAX_VALUE);
+			}
+			checkLength(wordCount, buffer.remaining() / 2);
+			DirectShortList words = DirectShortList.wrap(buffer, starts, lengths);
+			if (unchanged && tag == ImageFingerprint.tagOf(metadata))
+				return new HexFile(metadata, words, fingerprint);
+
+			// The content is unchanged, but the entry was written too soon to
+			// trust its time or under other metadata. Record the current time
+			// and fingerprint so that the next load need do neither again.
+			try {
+				HexFile rewritten = writeEntry(metadata, entry, source, hash, words);
+				words.close();
+				return rewritten;
+			} catch (IOException e) {
+				log.warning("Could not update cache entry " + entry + ": " + e.getMessage());
+			}
+			return new HexFile(metadata, words);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated cache entry", e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt cache entry", e);
+		}
+	}
+
+	// Returns length if it is between 0 and max, or throws.
+	private static int checkLength(long length, int max) throws IOException {
+		if (length < 0 || length > max)
+			throw new IOException("Corrupt cache entry: length " + length + " out of range");
+		return (int) length;
+	}
+
+	// Writes an entry for words and returns an image over the words in it.
+	private HexFile writeEntry(HexFileMetadata metadata, File entry, File source, long hash,
+			ReadableShortList words) throws IOException {
+		IntRangeSet extents = words.extents();
+		byte[] path = Common.getBytes(source.getPath());
+
+		long size = 64 + path.length + 8L * extents.size() + DirectShortList.bytesFor(extents);
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Image too large to cache");
+
+		// Write a temporary file and rename it, so that a concurrent reader
+		// never sees a partial entry.
+		File temp = File.createTempFile("entry", ".tmp", directory);
+		DirectShortList cached = null;
+		final ImageFingerprint fingerprint = new ImageFingerprint(metadata);
+		boolean ok = false;
+		try {
+			MappedByteBuffer buffer;
+			RandomAccessFile file = new RandomAccessFile(temp, "rw");
+			try {
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				file.close();
+			}
+
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.putLong(source.length()).putLong(source.lastModified()).putLong(System.currentTimeMillis());
+			buffer.putLong(hash);
+			buffer.putLong(ImageFingerprint.tagOf(metadata)).putLong(0);
+			buffer.putInt(path.length).put(path);
+			buffer.putInt(extents.size());
+			int[] starts = new int[extents.size()];
+			int[] lengths = new int[extents.size()];
+			for (int i = 0; i < starts.length; ++i) {
+				starts[i] = extents.start(i);
+				lengths[i] = extents.post(i) - extents.start(i);
+				buffer.putInt(starts[i]).putInt(lengths[i]);
+			}
+
+			cached = DirectShortList.wrap(buffer, starts, lengths);
+			final ShortWriter target = cached;
+			for (int i = 0; i < extents.size(); ++i) {
+				words.forEachRun(extents.get(i), new ShortSink() {
+					@Override
+					public void writeFrom(IntRange range, short[] srcArray, int offset) {
+						target.setRange(range.start(), srcArray, offset, range.size());
+						fingerprint.writeFrom(range, srcArray, offset);
+					}
+				});
+			}
+			buffer.putLong(FINGERPRINT_OFFSET, fingerprint.value());
+			buffer.force();
+
+			entry.delete();
+			ok = temp.renameTo(entry);
+			if (!ok)
+				throw new IOException("Could not replace " + entry);
+		} finally {
+			if (!ok) {
+				if (cached != null)
+					cached.close();
+				temp.delete();
+			}
+		}
+		return new HexFile(metadata, cached, fingerprint.value());
+	}
+
+	private void evict(File keep) {
+		File[] entries = directory.listFiles();
+		if (entries == null)
+			return;
+
+		long total = 0;
+		for (File file : entries) {
+			if (file.getName().endsWith(SUFFIX))
+				total += file.length();
+		}
+
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long x = a.lastModified();
+				long y = b.lastModified();
+				return (x < y) ? -1 : ((x == y) ? 0 : 1);
+			}
+		});
+
+		for (File file : entries) {
+			if (total <= maxBytes)
+				break;
+			if (!file.getName().endsWith(SUFFIX) || file.equals(keep))
+				continue;
+			long length = file.length();
+			if (file.delete()) {
+				log.fine("Evicted " + file + " from cache");
+				total -= length;
+			}
+		}
+	}
+
+	private static long contentHash(ByteBuffer content) {
+		content = content.duplicate();
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		while (content.hasRemaining()) {
+			int n = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	private static String entryName(String path) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(Common.getBytes(path));
+			return Common.toX2(digest, 0, digest.length) + SUFFIX;
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+
+/**
+ * Finds the addresses at which two images differ. Only the extents of the two
+ * images are visited, a chunk at a time, so the cost depends on how much of
+ * the images is populated rather than on the address space.
+ */
+class HexImageDiff {
+	private static final int CHUNK_WORDS = 4096;
+
+	/**
+	 * Returns the ascending, non-adjacent ranges of addresses at which
+	 * {@code a} and {@code b} differ. A missing word reads as all ones, and
+	 * only the bits within the word width at each address are compared. The
+	 * device ID word is not compared, just as it is not fingerprinted.
+	 * <p>
+	 * If one list is a snapshot of the other, only the pages either has
+	 * changed since are compared.
+	 */
+	static IntRangeSet diff(HexFileMetadata metadata, ReadableShortList a, ReadableShortList b) throws IOException {
+		IntRangeSet spans = a.extents().union(b.extents());
+		int idAddress = metadata.deviceIdAddress();
+		if (idAddress >= 0)
+			spans = spans.subtract(IntRange.getSize(idAddress, 1));
+		if (a instanceof PagedShortList && b instanceof PagedShortList)
+			spans = spans.intersection(((PagedShortList) a).pagesDifferingFrom((PagedShortList) b));
+		return diff(metadata, a, b, spans);
+	}
+
+	/**
+	 * Returns the ranges within {@code span} at which {@code a} and {@code b}
+	 * differ. Words are compared as they are for whole images.
+	 */
+	static IntRangeSet diff(HexFileMetadata metadata, ReadableShortList a, ReadableShortList b, IntRange span)
+			throws IOException {
+		return diff(metadata, a, b, IntRangeSet.of(span));
+	}
+
+	private static IntRangeSet diff(HexFileMetadata metadata, ReadableShortList a, ReadableShortList b,
+			IntRangeSet spans) throws IOException {
+		// The builder joins runs that a chunk boundary split.
+		IntRangeSet.Builder changed = new IntRangeSet.Builder();
+		WordWindow left = new WordWindow(CHUNK_WORDS);
+		WordWindow right = new WordWindow(CHUNK_WORDS);
+
+		for (int s = 0; s < spans.size(); ++s) {
+			int start = spans.start(s);
+			int post = spans.post(s);
+			while (start < post) {
+				IntRange rest = IntRange.getPost(start, post);
+				left.load(metadata, a, rest);
+				right.load(metadata, b, rest);
+
+				// The all-ones words are also the masks of the valid bits.
+				collect(left.start(), left.post() - left.start(), left.blanks, left.words, right.words, changed);
+
+				start = left.post();
+			}
+		}
+
+		return changed.build();
+	}
+
+	private static void collect(int chunkStart, int size, short[] masks, short[] left, short[] right,
+			IntRangeSet.Builder changed) {
+		int i = 0;
+		while (i < size) {
+			while (i < size && ((left[i] ^ right[i]) & masks[i]) == 0)
+				++i;
+			if (i >= size)
+				break;
+			int runStart = i;
+			while (i < size && ((left[i] ^ right[i]) & masks[i]) != 0)
+				++i;
+			changed.add(chunkStart + runStart, chunkStart + i);
+		}
+	}
+}
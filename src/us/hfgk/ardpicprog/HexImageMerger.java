@@ -0,0 +1,119 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Combines several images into one. The ranges already taken are kept in an
+ * interval map by start address, so each extent of a new image is checked
+ * only against the ranges it actually overlaps. Overlapping words must agree;
+ * where they do, the word already taken is kept.
+ */
+class HexImageMerger {
+	private final HexFileMetadata metadata;
+	private ShortList merged;
+	private final NavigableMap<Integer, Claim> claims = new TreeMap<Integer, Claim>();
+
+	private static class Claim {
+		final IntRange range;
+		final String owner;
+
+		Claim(IntRange range, String owner) {
+			this.range = range;
+			this.owner = owner;
+		}
+	}
+
+	HexImageMerger(HexFileMetadata metadata) {
+		this.metadata = metadata;
+		this.merged = Common.getBlankShortList(metadata);
+	}
+
+	/**
+	 * Adds the words of {@code words}, which came from the file
+	 * {@code name}, to the merged image.
+	 * 
+	 * @throws HexFileException
+	 *             if a word that is already in the merged image has a
+	 *             different value in {@code words}.
+	 */
+	void add(String name, ReadableShortList words) throws IOException {
+		if (claims.isEmpty() && words instanceof PagedShortList) {
+			// Nothing to check against, so the first image is taken whole.
+			merged = ((PagedShortList) words).snapshot();
+			IntRangeSet extents = words.extents();
+			for (int i = 0; i < extents.size(); ++i)
+				claims.put(extents.start(i), new Claim(extents.get(i), name));
+			return;
+		}
+
+		ShortSink sink = new ShortSink() {
+			@Override
+			public void writeFrom(IntRange range, short[] srcArray, int offset) {
+				merged.setRange(range.start(), srcArray, offset, range.size());
+			}
+		};
+
+		IntRangeSet extents = words.extents();
+		for (int e = 0; e < extents.size(); ++e) {
+			IntRange extent = extents.get(e);
+			List<Claim> overlapping = overlapping(extent);
+			IntRangeSet.Builder claimed = new IntRangeSet.Builder();
+			for (Claim claim : overlapping) {
+				checkOverlap(name, words, claim, extent);
+				claimed.add(claim.range);
+			}
+
+			// Take and copy only the parts no earlier file has claimed.
+			IntRangeSet unclaimed = IntRangeSet.of(extent).subtract(claimed.build());
+			for (int i = 0; i < unclaimed.size(); ++i)
+				claim(name, words, unclaimed.get(i), sink);
+		}
+	}
+
+	/**
+	 * Returns the merged image.
+	 */
+	HexFile toHexFile() throws HexFileException {
+		return new HexFile(metadata, merged);
+	}
+
+	// Claims in ascending order that intersect range.
+	private List<Claim> overlapping(IntRange range) {
+		Integer from = claims.floorKey(range.start());
+		if (from == null)
+			from = range.start();
+
+		List<Claim> result = new ArrayList<Claim>();
+		for (Claim claim : claims.subMap(from, true, range.post(), false).values()) {
+			if (claim.range.intersects(range))
+				result.add(claim);
+		}
+		return result;
+	}
+
+	private void checkOverlap(String name, ReadableShortList words, Claim claim, IntRange extent) throws IOException {
+		IntRangeSet conflicts = HexImageDiff.diff(metadata, merged, words, claim.range.intersection(extent));
+		if (!conflicts.isEmpty()) {
+			IntRange first = conflicts.get(0);
+			throw new HexFileException(name + " conflicts with " + claim.owner + " at "
+					+ String.format("%04X-%04X", first.start(), first.end()) + " ("
+					+ conflicts.wordCount() + " words differ)");
+		}
+	}
+
+	private void claim(String name, ReadableShortList words, IntRange range, ShortSink sink) throws IOException {
+		// Join an adjacent claim by the same file to keep the map small.
+		Map.Entry<Integer, Claim> before = claims.lowerEntry(range.start());
+		if (before != null && before.getValue().owner.equals(name) && before.getValue().range.post() == range.start())
+			claims.put(before.getKey(), new Claim(IntRange.getPost(before.getKey(), range.post()), name));
+		else
+			claims.put(range.start(), new Claim(range, name));
+
+		words.forEachRun(range, sink);
+	}
+}
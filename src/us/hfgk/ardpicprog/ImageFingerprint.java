@@ -0,0 +1,186 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+
+/**
+ * Running hash of the contents of an image. Each word contributes a mixed
+ * hash of its address and its value, masked to the word width at that
+ * address, and the contributions are summed. A word that is all ones
+ * contributes nothing, so an erased word and a missing one hash alike, just
+ * as they compare alike in {@link HexImageDiff}. The device ID word, which
+ * is not saved or compared either, contributes nothing, so an image hashes
+ * the same whether it was parsed, read whole or dumped.
+ * <p>
+ * The sum does not depend on the order in which words are added, so the hash
+ * can be kept as words are parsed or read from a device, in whatever order
+ * they arrive. An overwritten word is taken out by subtracting its
+ * contribution. Images that hash differently differ. A sum of mixes is not a
+ * collision-resistant digest, so images that hash the same are only likely
+ * to be the same, and anything that decides what to burn must still compare
+ * their words.
+ */
+final class ImageFingerprint implements ShortSink {
+	private final HexFileMetadata metadata;
+	private final int idAddress;
+	private long sum = 0;
+
+	ImageFingerprint(HexFileMetadata metadata) {
+		this.metadata = metadata;
+		this.idAddress = metadata.deviceIdAddress();
+	}
+
+	/**
+	 * Returns the fingerprint of the words of {@code words}.
+	 */
+	static long of(HexFileMetadata metadata, ReadableShortList words) throws IOException {
+		ImageFingerprint fingerprint = new ImageFingerprint(metadata);
+		IntRangeSet extents = words.extents();
+		for (int i = 0; i < extents.size(); ++i)
+			words.forEachRun(extents.get(i), fingerprint);
+		return fingerprint.value();
+	}
+
+	/**
+	 * Returns the fingerprint of the words of {@code words} within
+	 * {@code range}.
+	 */
+	static long of(HexFileMetadata metadata, ReadableShortList words, IntRange range) throws IOException {
+		ImageFingerprint fingerprint = new ImageFingerprint(metadata);
+		words.forEachRun(range, fingerprint);
+		return fingerprint.value();
+	}
+
+	/**
+	 * Returns a tag for the parts of {@code metadata} that fingerprints
+	 * depend on: the word widths, where data memory lies, and where the
+	 * device ID word is. Under metadata with the same tag, every image has
+	 * the same fingerprint, so a stored fingerprint can be kept with its tag
+	 * and reused when the tag still matches.
+	 */
+	static long tagOf(HexFileMetadata metadata) {
+		DeviceDetails device = metadata.getDevice();
+		int[] parameters = { device.programBits, device.dataBits, device.dataRange.start(), device.dataRange.post(),
+				metadata.deviceIdAddress() };
+		long tag = 0;
+		for (int parameter : parameters)
+			tag = mix(tag + parameter);
+		return tag;
+	}
+
+	static String format(long fingerprint) {
+		return String.format("%016X", fingerprint);
+	}
+
+	long value() {
+		return sum;
+	}
+
+	void add(int start, short[] words, int offset, int length) {
+		sum += contribution(start, words, offset, length);
+	}
+
+	@Override
+	public void writeFrom(IntRange range, short[] srcArray, int offset) {
+		add(range.start(), srcArray, offset, range.size());
+	}
+
+	private long contribution(int start, short[] words, int offset, int length) {
+		long total = 0;
+		for (int i = 0; i < length; ++i)
+			total += contribution(start + i, words[offset + i]);
+		return total;
+	}
+
+	private long contribution(int address, short word) {
+		int mask = metadata.fullWordAtAddress(address) & 0xFFFF;
+		int value = word & mask;
+		if (value == mask || address == idAddress)
+			return 0;
+		return mix(((long) address << 16) | value);
+	}
+
+	// Finalizer of the SplitMix64 generator: every input bit affects every
+	// output bit.
+	private static long mix(long key) {
+		long z = key + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns a list that passes reads and writes through to {@code words}
+	 * and keeps this fingerprint up to date with every write. The fingerprint
+	 * should start out as that of {@code words}.
+	 */
+	ShortList track(final ShortList words) {
+		IntRangeSet extents = words.extents();
+		final int initialUnsetFrom = extents.isEmpty() ? Integer.MIN_VALUE : extents.post(extents.size() - 1);
+
+		return new ShortList() {
+			// Every index at or past this one is known to be unset.
+			private int unsetFrom = initialUnsetFrom;
+
+			@Override
+			public IntRangeSet extents() {
+				return words.extents();
+			}
+
+			@Override
+			public short get(int index, short defaultValue) {
+				return words.get(index, defaultValue);
+			}
+
+			@Override
+			public Short get(int index) {
+				return words.get(index);
+			}
+
+			@Override
+			public int writeTo(ShortSink sink, IntRange range) throws IOException {
+				return words.writeTo(sink, range);
+			}
+
+			@Override
+			public int forEachRun(IntRange range, ShortSink visitor) throws IOException {
+				return words.forEachRun(range, visitor);
+			}
+
+			@Override
+			public void clear() {
+				words.clear();
+				sum = 0;
+				unsetFrom = Integer.MIN_VALUE;
+			}
+
+			@Override
+			public void set(int index, short value) {
+				setRange(index, new short[] { value }, 0, 1);
+			}
+
+			@Override
+			public void setRange(int index, short[] source, int offset, int length) {
+				// Words are usually set in ascending order, so nothing is
+				// there yet. Otherwise, take out the words being replaced.
+				if (index < unsetFrom) {
+					for (int i = 0; i < length; ++i) {
+						Short old = words.get(index + i);
+						if (old != null)
+							sum -= contribution(index + i, old);
+					}
+				}
+				words.setRange(index, source, offset, length);
+				add(index, source, offset, length);
+				if (index + length > unsetFrom)
+					unsetFrom = index + length;
+			}
+
+			@Override
+			public void readFrom(ShortSource source, IntRange range) throws IOException {
+				short[] receive = new short[range.size()];
+				source.readTo(range, receive, 0);
+				setRange(range.start(), receive, 0, receive.length);
+			}
+		};
+	}
+}
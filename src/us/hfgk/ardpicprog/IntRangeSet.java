@@ -0,0 +1,276 @@
+package us.hfgk.ardpicprog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of integers held as ascending ranges that neither overlap nor
+ * touch. Each range is packed into a single long, its start in the high half
+ * and its post in the low half, so a set costs eight bytes per range and the
+ * set operations are merges over plain arrays.
+ * <p>
+ * Ranges can be read by position with {@link #start(int)} and
+ * {@link #post(int)} without creating an {@link IntRange} for each.
+ */
+final class IntRangeSet implements Iterable<IntRange> {
+	private static final IntRangeSet EMPTY = new IntRangeSet(new long[0], 0);
+
+	private final long[] pairs;
+	private final int count;
+
+	private IntRangeSet(long[] pairs, int count) {
+		this.pairs = pairs;
+		this.count = count;
+	}
+
+	private static long pack(int start, int post) {
+		return ((long) start << 32) | (post & 0xFFFFFFFFL);
+	}
+
+	static IntRangeSet empty() {
+		return EMPTY;
+	}
+
+	static IntRangeSet of(IntRange range) {
+		return range.isEmpty() ? EMPTY : new IntRangeSet(new long[] { pack(range.start(), range.post()) }, 1);
+	}
+
+	/**
+	 * Collects ranges given in ascending order of start. A range that
+	 * overlaps or touches the one before is joined to it.
+	 */
+	static final class Builder {
+		private long[] pairs = new long[8];
+		private int count = 0;
+
+		Builder add(int start, int post) {
+			if (post <= start)
+				return this;
+			if (count > 0) {
+				int lastStart = (int) (pairs[count - 1] >> 32);
+				int lastPost = (int) pairs[count - 1];
+				if (start < lastStart)
+					throw new IllegalArgumentException("Ranges must be added in ascending order");
+				if (start <= lastPost) {
+					if (post > lastPost)
+						pairs[count - 1] = pack(lastStart, post);
+					return this;
+				}
+			}
+			if (count == pairs.length)
+				pairs = Arrays.copyOf(pairs, count * 2);
+			pairs[count++] = pack(start, post);
+			return this;
+		}
+
+		Builder add(IntRange range) {
+			return add(range.start(), range.post());
+		}
+
+		IntRangeSet build() {
+			return (count == 0) ? EMPTY : new IntRangeSet(Arrays.copyOf(pairs, count), count);
+		}
+	}
+
+	/**
+	 * Returns the number of ranges in this set.
+	 */
+	int size() {
+		return count;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	int start(int i) {
+		if (i >= count)
+			throw new IndexOutOfBoundsException();
+		return (int) (pairs[i] >> 32);
+	}
+
+	int post(int i) {
+		if (i >= count)
+			throw new IndexOutOfBoundsException();
+		return (int) pairs[i];
+	}
+
+	IntRange get(int i) {
+		return IntRange.getPost(start(i), post(i));
+	}
+
+	/**
+	 * Returns the number of integers in this set.
+	 */
+	long wordCount() {
+		long words = 0;
+		for (int i = 0; i < count; ++i)
+			words += (long) (int) pairs[i] - (int) (pairs[i] >> 32);
+		return words;
+	}
+
+	boolean contains(int value) {
+		int i = Arrays.binarySearch(pairs, 0, count, pack(value, Integer.MAX_VALUE));
+		if (i < 0)
+			i = -i - 2;
+		return i >= 0 && value < (int) pairs[i];
+	}
+
+	IntRangeSet union(IntRangeSet other) {
+		if (other.isEmpty())
+			return this;
+		if (isEmpty())
+			return other;
+
+		Builder builder = new Builder();
+		int i = 0;
+		int j = 0;
+		while (i < count || j < other.count) {
+			// Take whichever range starts first.
+			long next = (j >= other.count || (i < count && pairs[i] < other.pairs[j])) ? pairs[i++] : other.pairs[j++];
+			builder.add((int) (next >> 32), (int) next);
+		}
+		return builder.build();
+	}
+
+	IntRangeSet intersection(IntRangeSet other) {
+		Builder builder = new Builder();
+		int i = 0;
+		int j = 0;
+		while (i < count && j < other.count) {
+			int start = Math.max(start(i), other.start(j));
+			int post = Math.min(post(i), other.post(j));
+			builder.add(start, post);
+			if (post(i) < other.post(j))
+				++i;
+			else
+				++j;
+		}
+		return builder.build();
+	}
+
+	IntRangeSet intersection(IntRange range) {
+		return intersection(of(range));
+	}
+
+	/**
+	 * Returns the integers in this set that are not in {@code other}.
+	 */
+	IntRangeSet subtract(IntRangeSet other) {
+		if (isEmpty() || other.isEmpty())
+			return this;
+
+		Builder builder = new Builder();
+		int j = 0;
+		for (int i = 0; i < count; ++i) {
+			int start = start(i);
+			int post = post(i);
+			while (j < other.count && other.post(j) <= start)
+				++j;
+			// Cut out each range of other that lies within this one.
+			int k = j;
+			while (k < other.count && other.start(k) < post) {
+				builder.add(start, other.start(k));
+				start = Math.max(start, other.post(k));
+				if (other.post(k) > post)
+					break;
+				++k;
+			}
+			builder.add(start, post);
+		}
+		return builder.build();
+	}
+
+	IntRangeSet subtract(IntRange range) {
+		return subtract(of(range));
+	}
+
+	/**
+	 * Returns this set with every gap of at most {@code gap} integers between
+	 * neighbouring ranges filled in.
+	 */
+	IntRangeSet coalesce(int gap) {
+		if (count < 2 || gap <= 0)
+			return this;
+
+		Builder builder = new Builder();
+		int start = start(0);
+		int post = post(0);
+		for (int i = 1; i < count; ++i) {
+			if ((long) start(i) - post <= gap) {
+				post = post(i);
+			} else {
+				builder.add(start, post);
+				start = start(i);
+				post = post(i);
+			}
+		}
+		builder.add(start, post);
+		return builder.build();
+	}
+
+	/**
+	 * Returns the ranges of this set as a list.
+	 */
+	List<IntRange> toList() {
+		List<IntRange> ranges = new ArrayList<IntRange>(count);
+		for (int i = 0; i < count; ++i)
+			ranges.add(get(i));
+		return Collections.unmodifiableList(ranges);
+	}
+
+	@Override
+	public Iterator<IntRange> iterator() {
+		return new Iterator<IntRange>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < count;
+			}
+
+			@Override
+			public IntRange next() {
+				if (next >= count)
+					throw new NoSuchElementException();
+				return get(next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof IntRangeSet))
+			return false;
+		IntRangeSet other = (IntRangeSet) obj;
+		if (count != other.count)
+			return false;
+		for (int i = 0; i < count; ++i) {
+			if (pairs[i] != other.pairs[i])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 1;
+		for (int i = 0; i < count; ++i)
+			hash = 31 * hash + (int) (pairs[i] ^ (pairs[i] >>> 32));
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return toList().toString();
+	}
+}
@@ -2,7 +2,7 @@ package us.hfgk.ardpicprog;
 
 import java.io.IOException;
 
-interface MutableShortList {
+interface MutableShortList extends ShortWriter {
 
 	/** Removes all elements from this list. **/
 	void clear();
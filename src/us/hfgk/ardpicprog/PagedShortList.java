@@ -0,0 +1,367 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+
+/**
+ * Implementation of ShortList that stores values in fixed-size pages, found
+ * through a two-level table and allocated on first write. Memory grows with
+ * the number of pages written to, not with the highest index, so sparse
+ * images anywhere in the 31-bit index space are cheap. Populated runs are
+ * kept in a {@link RunIndex}.
+ * <p>
+ * Given the metadata of a device, pages lying entirely within memory no
+ * wider than 8 bits store a byte per word. Such a page is widened to a short
+ * per word if a value that does not fit is ever written to it.
+ * <p>
+ * {@link #snapshot()} returns a copy in constant time by sharing pages between
+ * the two lists. A shared page is copied by whichever list first writes to
+ * it, so pages that neither list has changed since remain shared, and
+ * {@link #pagesDifferingFrom(PagedShortList)} can skip them.
+ */
+public class PagedShortList implements ShortList {
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private static final int TABLE_BITS = 10;
+	private static final int TABLE_SIZE = 1 << TABLE_BITS;
+	private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+	// Enough tables to cover every non-negative int index.
+	private static final int DIRECTORY_SIZE = 1 << (31 - PAGE_BITS - TABLE_BITS);
+
+	private static final class Page {
+		// The list allowed to change this page in place.
+		final Object owner;
+		// Exactly one of values and bytes is non-null.
+		short[] values;
+		byte[] bytes;
+		// Bit i is set if word i is populated.
+		final long[] present;
+
+		Page(Object owner, boolean narrow) {
+			this.owner = owner;
+			if (narrow)
+				bytes = new byte[PAGE_SIZE];
+			else
+				values = new short[PAGE_SIZE];
+			present = new long[PAGE_SIZE / 64];
+		}
+
+		Page(Object owner, Page source) {
+			this.owner = owner;
+			values = (source.values == null) ? null : source.values.clone();
+			bytes = (source.bytes == null) ? null : source.bytes.clone();
+			present = source.present.clone();
+		}
+
+		short get(int offset) {
+			short[] v = values;
+			return (v != null) ? v[offset] : (short) (bytes[offset] & 0xFF);
+		}
+
+		void set(int offset, short value) {
+			if (values == null && (value & 0xFF00) != 0)
+				widen();
+			if (values != null)
+				values[offset] = value;
+			else
+				bytes[offset] = (byte) value;
+		}
+
+		void set(int offset, short[] source, int sourceOffset, int count) {
+			if (values == null) {
+				for (int i = 0; i < count; ++i) {
+					if ((source[sourceOffset + i] & 0xFF00) != 0) {
+						widen();
+						break;
+					}
+				}
+			}
+			if (values != null) {
+				System.arraycopy(source, sourceOffset, values, offset, count);
+			} else {
+				for (int i = 0; i < count; ++i)
+					bytes[offset + i] = (byte) source[sourceOffset + i];
+			}
+		}
+
+		void copyOut(int offset, short[] dest, int destIndex, int count) {
+			if (values != null) {
+				System.arraycopy(values, offset, dest, destIndex, count);
+			} else {
+				for (int i = 0; i < count; ++i)
+					dest[destIndex + i] = (short) (bytes[offset + i] & 0xFF);
+			}
+		}
+
+		private void widen() {
+			short[] wide = new short[PAGE_SIZE];
+			for (int i = 0; i < PAGE_SIZE; ++i)
+				wide[i] = (short) (bytes[i] & 0xFF);
+			values = wide;
+			bytes = null;
+		}
+	}
+
+	private final HexFileMetadata metadata;
+	private Page[][] directory = new Page[DIRECTORY_SIZE][];
+	private RunIndex runs = new RunIndex();
+
+	// Tables and pages owned by a different token are shared with another
+	// list and are copied before being changed. A snapshot gives both lists
+	// fresh tokens.
+	private Object owner = new Object();
+	private Object[] tableOwners = new Object[DIRECTORY_SIZE];
+	private boolean runsShared = false;
+
+	/**
+	 * Creates a list that stores every word as a short.
+	 */
+	public PagedShortList() {
+		this(null);
+	}
+
+	/**
+	 * Creates a list that stores words in areas of {@code metadata}'s device
+	 * no wider than 8 bits as bytes.
+	 */
+	public PagedShortList(HexFileMetadata metadata) {
+		this.metadata = metadata;
+	}
+
+	private boolean isNarrowPage(int pageNumber) {
+		if (metadata == null)
+			return false;
+		int base = pageNumber << PAGE_BITS;
+		// The last word is checked alone so that no post can overflow.
+		return metadata.maxBitWidthWithin(IntRange.getPost(base, base + PAGE_MASK)) <= 8
+				&& metadata.bitWidthAtAddress(base + PAGE_MASK) <= 8;
+	}
+
+	private Page pageAt(int pageNumber) {
+		Page[] table = directory[pageNumber >>> TABLE_BITS];
+		return (table == null) ? null : table[pageNumber & TABLE_MASK];
+	}
+
+	private Page pageForWrite(int pageNumber) {
+		int tableNumber = pageNumber >>> TABLE_BITS;
+		Page[] table = directory[tableNumber];
+		if (table == null) {
+			table = directory[tableNumber] = new Page[TABLE_SIZE];
+			tableOwners[tableNumber] = owner;
+		} else if (tableOwners[tableNumber] != owner) {
+			table = directory[tableNumber] = table.clone();
+			tableOwners[tableNumber] = owner;
+		}
+
+		Page page = table[pageNumber & TABLE_MASK];
+		if (page == null)
+			page = table[pageNumber & TABLE_MASK] = new Page(owner, isNarrowPage(pageNumber));
+		else if (page.owner != owner)
+			page = table[pageNumber & TABLE_MASK] = new Page(owner, page);
+		return page;
+	}
+
+	private RunIndex runsForWrite() {
+		if (runsShared) {
+			runs = runs.copy();
+			runsShared = false;
+		}
+		return runs;
+	}
+
+	/**
+	 * Returns a list with the same contents as this one. Later changes to
+	 * either list do not affect the other.
+	 */
+	public PagedShortList snapshot() {
+		PagedShortList copy = new PagedShortList(metadata);
+		copy.directory = directory.clone();
+		copy.tableOwners = new Object[DIRECTORY_SIZE];
+		copy.runs = runs;
+		copy.runsShared = true;
+
+		owner = new Object();
+		runsShared = true;
+		return copy;
+	}
+
+	/**
+	 * Returns the ascending ranges of whole pages at which this list and
+	 * {@code other} may differ. Pages outside them are shared by the two
+	 * lists, having been changed by neither since one was made as a snapshot
+	 * of the other.
+	 */
+	public IntRangeSet pagesDifferingFrom(PagedShortList other) {
+		IntRangeSet.Builder ranges = new IntRangeSet.Builder();
+		for (int t = 0; t < DIRECTORY_SIZE; ++t) {
+			Page[] mine = directory[t];
+			Page[] theirs = other.directory[t];
+			if (mine == theirs)
+				continue;
+			for (int p = 0; p < TABLE_SIZE; ++p) {
+				Page a = (mine == null) ? null : mine[p];
+				Page b = (theirs == null) ? null : theirs[p];
+				if (a == b)
+					continue;
+				int start = ((t << TABLE_BITS) | p) << PAGE_BITS;
+				int post = (start + PAGE_SIZE < 0) ? Integer.MAX_VALUE : start + PAGE_SIZE;
+				ranges.add(start, post);
+			}
+		}
+		return ranges.build();
+	}
+
+	private static boolean isPresent(Page page, int offset) {
+		return (page.present[offset >>> 6] & (1L << offset)) != 0;
+	}
+
+	// Marks offsets [from, post) of a page as populated.
+	private static void markPresent(long[] present, int from, int post) {
+		while (from < post) {
+			int word = from >>> 6;
+			int wordPost = Math.min(post, (word + 1) << 6);
+			int bits = wordPost - from;
+			long mask = (bits == 64) ? -1L : ((1L << bits) - 1) << from;
+			present[word] |= mask;
+			from = wordPost;
+		}
+	}
+
+	private IntRangeSet extentsWithin(IntRange overRange) {
+		return runs.within(overRange);
+	}
+
+	@Override
+	public IntRangeSet extents() {
+		return runs.all();
+	}
+
+	@Override
+	public short get(int index, short defaultValue) {
+		if (index < 0)
+			return defaultValue;
+		Page page = pageAt(index >>> PAGE_BITS);
+		int offset = index & PAGE_MASK;
+		return (page != null && isPresent(page, offset)) ? page.get(offset) : defaultValue;
+	}
+
+	@Override
+	public Short get(int index) {
+		if (index < 0)
+			return null;
+		Page page = pageAt(index >>> PAGE_BITS);
+		int offset = index & PAGE_MASK;
+		return (page != null && isPresent(page, offset)) ? page.get(offset) : null;
+	}
+
+	@Override
+	public int writeTo(ShortSink sink, IntRange writeRange) throws IOException {
+		int actualCopiedCount = 0;
+		short[] send = new short[0];
+
+		IntRangeSet ranges = extentsWithin(writeRange);
+		for (int i = 0; i < ranges.size(); ++i) {
+			IntRange range = ranges.get(i);
+			if (send.length < range.size())
+				send = new short[range.size()];
+
+			copyOut(range, send);
+			sink.writeFrom(range, send, 0);
+
+			actualCopiedCount += range.size();
+		}
+
+		return actualCopiedCount;
+	}
+
+	@Override
+	public int forEachRun(IntRange range, ShortSink visitor) throws IOException {
+		int visitedCount = 0;
+		short[] widened = null;
+
+		IntRangeSet runs = extentsWithin(range);
+		for (int i = 0; i < runs.size(); ++i) {
+			int index = runs.start(i);
+			int post = runs.post(i);
+			while (index < post) {
+				int offset = index & PAGE_MASK;
+				int length = Math.min(PAGE_SIZE - offset, post - index);
+				Page page = pageAt(index >>> PAGE_BITS);
+				IntRange piece = IntRange.getSize(index, length);
+				if (page.values != null) {
+					visitor.writeFrom(piece, page.values, offset);
+				} else {
+					if (widened == null)
+						widened = new short[PAGE_SIZE];
+					page.copyOut(offset, widened, 0, length);
+					visitor.writeFrom(piece, widened, 0);
+				}
+				index += length;
+			}
+			visitedCount += post - runs.start(i);
+		}
+
+		return visitedCount;
+	}
+
+	// Copies a populated range into dest, a page at a time.
+	private void copyOut(IntRange range, short[] dest) {
+		int index = range.start();
+		int destIndex = 0;
+		while (index < range.post()) {
+			int offset = index & PAGE_MASK;
+			int length = Math.min(PAGE_SIZE - offset, range.post() - index);
+			pageAt(index >>> PAGE_BITS).copyOut(offset, dest, destIndex, length);
+			index += length;
+			destIndex += length;
+		}
+	}
+
+	@Override
+	public void clear() {
+		directory = new Page[DIRECTORY_SIZE][];
+		tableOwners = new Object[DIRECTORY_SIZE];
+		runs = new RunIndex();
+		runsShared = false;
+	}
+
+	@Override
+	public void set(int index, short value) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException();
+		Page page = pageForWrite(index >>> PAGE_BITS);
+		int offset = index & PAGE_MASK;
+		page.set(offset, value);
+		page.present[offset >>> 6] |= 1L << offset;
+		runsForWrite().add(index, index + 1);
+	}
+
+	@Override
+	public void setRange(int index, short[] source, int offset, int length) {
+		if (index < 0 || offset < 0 || length < 0 || offset + length > source.length
+				|| (long) index + length > Integer.MAX_VALUE)
+			throw new IndexOutOfBoundsException();
+
+		runsForWrite().add(index, index + length);
+		while (length > 0) {
+			Page page = pageForWrite(index >>> PAGE_BITS);
+			int pageOffset = index & PAGE_MASK;
+			int count = Math.min(PAGE_SIZE - pageOffset, length);
+			page.set(pageOffset, source, offset, count);
+			markPresent(page.present, pageOffset, pageOffset + count);
+			index += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void readFrom(ShortSource source, IntRange range) throws IOException {
+		short[] receive = new short[range.size()];
+		source.readTo(range, receive, 0);
+		setRange(range.start(), receive, 0, receive.length);
+	}
+
+}
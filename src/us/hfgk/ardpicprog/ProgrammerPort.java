@@ -5,6 +5,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,6 +22,9 @@ public class ProgrammerPort implements Closeable {
 		private int bufposn = 0;
 		private byte[] buffer = new byte[1024];
 
+		// Little-endian view over buffer, used to decode words in place.
+		private final ByteBuffer words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+
 		int fillFrom(InputStream in) throws IOException {
 			int bytesRead;
 
@@ -39,6 +44,48 @@ public class ProgrammerPort implements Closeable {
 			}
 			return buffer[bufposn++] & 0xFF;
 		}
+
+		// Decodes count little-endian words directly from the buffer into
+		// dest, refilling as needed.
+		private void readWords(ProgrammerPort src, short[] dest, int offset, int count) throws IOException {
+			while (count > 0) {
+				int available = (buflen - bufposn) >> 1;
+				if (available <= 0) {
+					// At most one byte is buffered, so this word straddles a
+					// refill.
+					int low = readProgrammerByte(src);
+					int high = readProgrammerByte(src);
+					if (low < 0 || high < 0)
+						throw new EOFException();
+					dest[offset++] = (short) (low | (high << 8));
+					--count;
+					continue;
+				}
+
+				int n = (available < count) ? available : count;
+				int end = offset + n;
+				while (offset < end) {
+					dest[offset++] = words.getShort(bufposn);
+					bufposn += 2;
+				}
+				count -= n;
+			}
+		}
+
+		// Discards length bytes, refilling as needed.
+		private void skip(ProgrammerPort src, int length) throws IOException {
+			while (length > 0) {
+				if (bufposn >= buflen) {
+					if (!src.com.fillBuffer(this))
+						throw new EOFException();
+				}
+				int n = buflen - bufposn;
+				if (n > length)
+					n = length;
+				bufposn += n;
+				length -= n;
+			}
+		}
 	}
 
 	private ProgrammerCommPort com = null;
@@ -181,14 +228,12 @@ public class ProgrammerPort implements Closeable {
 		return readMultiLineResponse();
 	}
 
-	private void read(byte[] data, int offset, int length) throws IOException {
-		while (length > 0) {
-			int ch = readProgrammerByte();
-			if (ch == -1)
-				throw new EOFException();
-			data[offset++] = (byte) (0xFF & ch);
-			--length;
-		}
+	private void readWords(short[] data, int offset, int count) throws IOException {
+		buff.readWords(this, data, offset, count);
+	}
+
+	private void skip(int length) throws IOException {
+		buff.skip(this, length);
 	}
 
 	private int readProgrammerByte() throws IOException {
@@ -402,7 +447,6 @@ public class ProgrammerPort implements Closeable {
 		@Override
 		public void readTo(IntRange range, short[] data, int offset) throws IOException {
 			int current = range.start();
-			byte[] buffer = new byte[256];
 			
 			port.commandReadBin(range);
 			
@@ -412,13 +456,12 @@ public class ProgrammerPort implements Closeable {
 					throw new EOFException();
 				else if (pktlen == 0)
 					break;
-				port.read(buffer, 0, pktlen);
 				int numWords = pktlen / 2;
 				if ((numWords) > (range.post() - current))
 					numWords = range.post() - current;
-				for (int index = 0; index < numWords; ++index) {
-					data[offset + index] = (short) ((buffer[index * 2] & 0xFF) | ((buffer[index * 2 + 1] & 0xFF) << 8));
-				}
+				port.readWords(data, offset, numWords);
+				// Discard any excess words and odd trailing byte.
+				port.skip(pktlen - numWords * 2);
 				offset += numWords;
 				current += numWords;
 			}
@@ -1,15 +1,13 @@
 package us.hfgk.ardpicprog;
 
 import java.io.IOException;
-import java.util.List;
 
 interface ReadableShortList {
 
 	/**
-	 * Returns a list of index ranges in which this list is known to be
-	 * populated.
+	 * Returns the index ranges in which this list is known to be populated.
 	 */
-	List<IntRange> extents();
+	IntRangeSet extents();
 
 	/**
 	 * Returns the value at the given index of this list, or
@@ -28,4 +26,13 @@ interface ReadableShortList {
 	 * into {@code sink}.
 	 */
 	int writeTo(ShortSink sink, IntRange range) throws IOException;
+
+	/**
+	 * Passes the values at the populated indices of this list specified by
+	 * {@code range} to {@code visitor}, in ascending order, and returns how
+	 * many there were. Unlike {@link #writeTo}, a run may arrive in several
+	 * pieces, and the array passed may be the list's own storage, so the
+	 * visitor must neither change the array nor keep it after returning.
+	 */
+	int forEachRun(IntRange range, ShortSink visitor) throws IOException;
 }
@@ -0,0 +1,89 @@
+package us.hfgk.ardpicprog;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Ordered set of populated index runs, kept up to date as indices are added.
+ * Runs never overlap or touch, so listing them costs one step per run, and
+ * finding those within a range is a search of the run starts.
+ */
+final class RunIndex {
+	// Run start to a one-element array holding the run's post, so that a run
+	// can be extended in place.
+	private final TreeMap<Integer, int[]> runs = new TreeMap<Integer, int[]>();
+
+	/**
+	 * Marks the indices in {@code [start, post)} as populated.
+	 */
+	void add(int start, int post) {
+		if (post <= start)
+			return;
+
+		Map.Entry<Integer, int[]> floor = runs.floorEntry(start);
+		if (floor != null && floor.getValue()[0] >= start) {
+			// Rewriting populated words leaves the runs as they are.
+			if (floor.getValue()[0] >= post)
+				return;
+			start = floor.getKey();
+		} else {
+			floor = null;
+		}
+
+		// Absorb the runs that begin inside or right after the new one.
+		NavigableMap<Integer, int[]> absorbed = runs.subMap(start, floor == null, post, true);
+		if (!absorbed.isEmpty()) {
+			post = Math.max(post, absorbed.lastEntry().getValue()[0]);
+			absorbed.clear();
+		}
+
+		if (floor != null)
+			floor.getValue()[0] = post;
+		else
+			runs.put(start, new int[] { post });
+	}
+
+	void clear() {
+		runs.clear();
+	}
+
+	/**
+	 * Returns an index holding the same runs that is unaffected by later
+	 * changes to this one.
+	 */
+	RunIndex copy() {
+		RunIndex copy = new RunIndex();
+		for (Map.Entry<Integer, int[]> run : runs.entrySet())
+			copy.runs.put(run.getKey(), new int[] { run.getValue()[0] });
+		return copy;
+	}
+
+	/**
+	 * Returns the runs.
+	 */
+	IntRangeSet all() {
+		// The runs are already ascending and apart, so nothing is sorted.
+		IntRangeSet.Builder ranges = new IntRangeSet.Builder();
+		for (Map.Entry<Integer, int[]> run : runs.entrySet())
+			ranges.add(run.getKey(), run.getValue()[0]);
+		return ranges.build();
+	}
+
+	/**
+	 * Returns the parts of the runs that lie within {@code range}.
+	 */
+	IntRangeSet within(IntRange range) {
+		if (range.isEmpty())
+			return IntRangeSet.empty();
+
+		Integer from = runs.floorKey(range.start());
+		if (from == null)
+			from = range.start();
+
+		IntRangeSet.Builder ranges = new IntRangeSet.Builder();
+		for (Map.Entry<Integer, int[]> run : runs.subMap(from, true, range.post(), false).entrySet())
+			ranges.add(Math.max(run.getKey(), range.start()), Math.min(run.getValue()[0], range.post()));
+		return ranges.build();
+	}
+}
@@ -0,0 +1,126 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A ShortWriter that passes consecutively set words to a consumer thread as
+ * runs, through a bounded queue. Words must be set in ascending order, each
+ * index at most once.
+ */
+class ShortRunQueue implements ShortWriter {
+	// A multiple of the programmer's packet size, so that splitting a long
+	// run never leaves the port a short odd-sized write.
+	private static final int RUN_CAPACITY = 1024;
+
+	private static final class Run {
+		final int start;
+		final short[] words;
+		int length = 0;
+
+		// Set on the final run only.
+		final boolean end;
+		final IOException error;
+
+		Run(int start, int capacity) {
+			this.start = start;
+			this.words = new short[capacity];
+			this.end = false;
+			this.error = null;
+		}
+
+		Run(IOException error) {
+			this.start = 0;
+			this.words = null;
+			this.end = true;
+			this.error = error;
+		}
+	}
+
+	/** Thrown out of the producer when the consumer has stopped. */
+	static final class CancelledException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		CancelledException(Throwable cause) {
+			super(cause);
+		}
+	}
+
+	private final BlockingQueue<Run> queue;
+	private Run current = null;
+
+	ShortRunQueue(int maxPendingRuns) {
+		queue = new ArrayBlockingQueue<Run>(maxPendingRuns);
+	}
+
+	@Override
+	public void setRange(int index, short[] source, int offset, int length) {
+		while (length > 0) {
+			if (current != null && (current.start + current.length != index || current.length == RUN_CAPACITY)) {
+				put(current);
+				current = null;
+			}
+			if (current == null)
+				current = new Run(index, RUN_CAPACITY);
+
+			int n = RUN_CAPACITY - current.length;
+			if (n > length)
+				n = length;
+			System.arraycopy(source, offset, current.words, current.length, n);
+			current.length += n;
+			index += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/** Called by the producer after the last word has been set. */
+	void finish() {
+		if (current != null) {
+			put(current);
+			current = null;
+		}
+		put(new Run(null));
+	}
+
+	/** Called by the producer if it cannot continue. */
+	void fail(IOException error) {
+		current = null;
+		put(new Run(error));
+	}
+
+	private void put(Run run) {
+		try {
+			queue.put(run);
+		} catch (InterruptedException e) {
+			throw new CancelledException(e);
+		}
+	}
+
+	/**
+	 * Receives the words sent by the producer until it finishes, passing each
+	 * run to {@code visitor}. Rethrows an error passed to {@link #fail}.
+	 */
+	void drainTo(RunVisitor visitor) throws IOException {
+		for (;;) {
+			Run run;
+			try {
+				run = queue.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for words");
+			}
+			if (run.end) {
+				if (run.error != null)
+					throw run.error;
+				return;
+			}
+			visitor.visit(run.start, run.words, run.length);
+		}
+	}
+
+	interface RunVisitor {
+		void visit(int start, short[] words, int length) throws IOException;
+	}
+}
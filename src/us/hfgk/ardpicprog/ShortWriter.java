@@ -0,0 +1,15 @@
+package us.hfgk.ardpicprog;
+
+/**
+ * Receives words to be stored, a run of consecutive indices at a time. This
+ * is all the parser needs of the list it fills.
+ */
+interface ShortWriter {
+
+	/**
+	 * Sets {@code length} consecutive indices, starting at {@code index}, to
+	 * the values in {@code source} starting at {@code offset}.
+	 */
+	void setRange(int index, short[] source, int offset, int length);
+
+}
@@ -0,0 +1,52 @@
+package us.hfgk.ardpicprog;
+
+import java.io.IOException;
+
+/**
+ * Reusable array view of a range of an image. Loading a range fills
+ * {@link #blanks} with the all-ones word for each address and {@link #words}
+ * with the word at each address, blank where the list has no value, so that
+ * scans over the range are plain array loops.
+ */
+final class WordWindow implements ShortSink {
+	final short[] words;
+	final short[] blanks;
+	private int start;
+	private int post;
+
+	WordWindow(int capacity) {
+		words = new short[capacity];
+		blanks = new short[capacity];
+	}
+
+	int capacity() {
+		return words.length;
+	}
+
+	int start() {
+		return start;
+	}
+
+	int post() {
+		return post;
+	}
+
+	/**
+	 * Loads as much of {@code range} as fits, starting at its start, from
+	 * {@code list}.
+	 */
+	void load(HexFileMetadata metadata, ReadableShortList list, IntRange range) throws IOException {
+		start = range.start();
+		post = start + Math.min(range.size(), words.length);
+		IntRange loaded = IntRange.getPost(start, post);
+
+		metadata.fillFullWords(loaded, blanks, 0);
+		System.arraycopy(blanks, 0, words, 0, loaded.size());
+		list.forEachRun(loaded, this);
+	}
+
+	@Override
+	public void writeFrom(IntRange range, short[] srcArray, int offset) {
+		System.arraycopy(srcArray, offset, words, range.start() - start, range.size());
+	}
+}